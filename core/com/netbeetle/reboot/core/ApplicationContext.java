@@ -16,14 +16,27 @@
 
 package com.netbeetle.reboot.core;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.netbeetle.reboot.core.config.ActionConfig;
 import com.netbeetle.reboot.core.config.ClassLoaderConfig;
@@ -35,16 +48,80 @@ import com.netbeetle.reboot.core.config.URIResolverConfig;
 public class ApplicationContext
 {
     private static final String SOURCE_CLASS_LOADER = "reboot-source-classloader";
+    private static final int RESOLVER_THREADS = Integer.getInteger(
+        "com.netbeetle.reboot.resolverThreads", 4).intValue();
+    private static final boolean LAZY = Boolean.getBoolean("com.netbeetle.reboot.lazy");
+    private static final String NEW_LINE = String.format("%n");
+
+    private static class ResolutionEvent
+    {
+        private final URI uri;
+        private final String threadName;
+        private final long start;
+        private final long end;
+
+        public ResolutionEvent(URI uri, String threadName, long start, long end)
+        {
+            this.uri = uri;
+            this.threadName = threadName;
+            this.start = start;
+            this.end = end;
+        }
+    }
 
     private final RebootConfig rebootConfig;
+    private final URISettings uriSettings;
+    private final LockFile lockFile;
+    private final PackFile packFile;
+    private final URIResolverContext uriResolverContext;
     private final Map<ModuleConfig, RebootClassLoader> classLoaders =
         new HashMap<ModuleConfig, RebootClassLoader>();
     private final Map<URIResolverConfig, URIResolver> uriResolvers =
         new HashMap<URIResolverConfig, URIResolver>();
+    private final Map<URI, Future<RebootFileSystem>> fileSystems =
+        new HashMap<URI, Future<RebootFileSystem>>();
+    private final Set<ModuleConfig> submittedModules = new HashSet<ModuleConfig>();
+    private final List<ResolutionEvent> timeline = Collections
+        .synchronizedList(new ArrayList<ResolutionEvent>());
+    private final List<LazyFileSystem> lazyFileSystems = new ArrayList<LazyFileSystem>();
+    private ExecutorService resolverExecutor;
+    private int resolutionDepth = 0;
+    private long resolutionStart;
 
     public ApplicationContext(RebootConfig rebootConfig)
+    {
+        this(rebootConfig, null);
+    }
+
+    /**
+     * @param rebootConfig
+     *            the merged configuration
+     * @param lockFile
+     *            the pins used to resolve URIs, or null if URIs should not be
+     *            pinned
+     */
+    public ApplicationContext(RebootConfig rebootConfig, LockFile lockFile)
+    {
+        this(rebootConfig, lockFile, null);
+    }
+
+    /**
+     * @param rebootConfig
+     *            the merged configuration
+     * @param lockFile
+     *            the pins used to resolve URIs, or null if URIs should not be
+     *            pinned
+     * @param packFile
+     *            the packed modules to use in place of resolving their URIs,
+     *            or null if modules should always be resolved
+     */
+    public ApplicationContext(RebootConfig rebootConfig, LockFile lockFile, PackFile packFile)
     {
         this.rebootConfig = rebootConfig;
+        this.uriSettings = new URISettings(rebootConfig.getUriSettings());
+        this.lockFile = lockFile;
+        this.packFile = packFile;
+        this.uriResolverContext = new URIResolverContext(uriSettings, lockFile);
     }
 
     public RebootConfig getRebootConfig()
@@ -52,6 +129,27 @@ public class ApplicationContext
         return rebootConfig;
     }
 
+    public URISettings getURISettings()
+    {
+        return uriSettings;
+    }
+
+    /**
+     * @return the pins used to resolve URIs, or null if URIs are not pinned
+     */
+    public LockFile getLockFile()
+    {
+        return lockFile;
+    }
+
+    /**
+     * @return the packed modules, or null if modules are always resolved
+     */
+    public PackFile getPackFile()
+    {
+        return packFile;
+    }
+
     private ModuleConfig lookupModuleConfig(String moduleId)
     {
         if (rebootConfig.getModules() == null)
@@ -112,9 +210,23 @@ public class ApplicationContext
         return getClassLoader(module);
     }
 
-    private RebootClassLoader getClassLoader(ModuleConfig module) throws NoSuchMethodException,
-        ClassNotFoundException, InstantiationException, IllegalAccessException,
-        InvocationTargetException, RebootException
+    /**
+     * Checks whether modules are activated lazily. In lazy mode the class
+     * loader for each module is created immediately, but the URIs of the
+     * module are not resolved until the first class or resource is looked up
+     * in the module. Lazy mode is enabled by setting the
+     * com.netbeetle.reboot.lazy system property to true.
+     * 
+     * @return true if modules are activated lazily
+     */
+    public boolean isLazy()
+    {
+        return LAZY;
+    }
+
+    private synchronized RebootClassLoader getClassLoader(ModuleConfig module)
+        throws NoSuchMethodException, ClassNotFoundException, InstantiationException,
+        IllegalAccessException, InvocationTargetException, RebootException
     {
         if (classLoaders.containsKey(module))
         {
@@ -127,9 +239,21 @@ public class ApplicationContext
         }
 
         classLoaders.put(module, null);
+        if (resolutionDepth++ == 0)
+        {
+            resolutionStart = System.currentTimeMillis();
+        }
         boolean success = false;
         try
         {
+            // start resolving the URIs of this module and all of its
+            // transitive dependencies in parallel; the class loaders are
+            // still created one at a time in dependency order below
+            if (!LAZY)
+            {
+                submitFileSystems(module);
+            }
+
             ClassLoader parent = ClassLoader.getSystemClassLoader();
 
             Set<RebootClassLoader> dependencies = new LinkedHashSet<RebootClassLoader>();
@@ -143,14 +267,14 @@ public class ApplicationContext
 
             String moduleClassLoaderId = module.getClassLoaderId();
 
-            RebootFileSystem fileSystem;
+            List<URI> uris;
             if (module.getUris() != null)
             {
-                fileSystem = getFileSystem(module.getUris());
+                uris = module.getUris();
             }
             else if (module.getSrcUris() != null)
             {
-                fileSystem = getFileSystem(module.getSrcUris());
+                uris = module.getSrcUris();
                 if (moduleClassLoaderId == null)
                 {
                     moduleClassLoaderId = SOURCE_CLASS_LOADER;
@@ -161,6 +285,23 @@ public class ApplicationContext
                 throw new RebootException("No URI defined for " + module.getId());
             }
 
+            RebootFileSystem fileSystem = getPackedFileSystem(module.getId(), uris);
+            if (fileSystem != null)
+            {
+                // packed source modules already hold their compiled classes
+                moduleClassLoaderId = module.getClassLoaderId();
+            }
+            else if (LAZY)
+            {
+                LazyFileSystem lazyFileSystem = new LazyFileSystem(this, module.getId(), uris);
+                lazyFileSystems.add(lazyFileSystem);
+                fileSystem = lazyFileSystem;
+            }
+            else
+            {
+                fileSystem = getFileSystem(uris);
+            }
+
             RebootClassLoaderContext context =
                 new RebootClassLoaderContext(module.getId(), fileSystem, dependencies, parent);
 
@@ -185,34 +326,296 @@ public class ApplicationContext
             {
                 classLoaders.remove(module);
             }
+            if (--resolutionDepth == 0)
+            {
+                reportTimeline();
+            }
         }
     }
 
+    private void submitFileSystems(ModuleConfig module) throws InstantiationException,
+        IllegalAccessException, ClassNotFoundException, NoSuchMethodException,
+        InvocationTargetException, RebootException
+    {
+        Deque<ModuleConfig> stack = new LinkedList<ModuleConfig>();
+        stack.push(module);
+        while (!stack.isEmpty())
+        {
+            ModuleConfig next = stack.pop();
+            if (!submittedModules.add(next))
+            {
+                continue;
+            }
+
+            // missing modules are reported when their class loader is created
+            if (next.getDependencies() != null)
+            {
+                for (String dependency : next.getDependencies())
+                {
+                    ModuleConfig dependencyConfig = lookupModuleConfig(dependency);
+                    if (dependencyConfig != null && !classLoaders.containsKey(dependencyConfig))
+                    {
+                        stack.push(dependencyConfig);
+                    }
+                }
+            }
+
+            List<URI> uris = next.getUris() != null ? next.getUris() : next.getSrcUris();
+            if (uris != null && getPackedFileSystem(next.getId(), uris) == null)
+            {
+                for (URI uri : uris)
+                {
+                    submitFileSystem(uri, true);
+                }
+            }
+        }
+    }
+
+    private RebootFileSystem getPackedFileSystem(String moduleId, List<URI> uris)
+    {
+        return packFile == null ? null : packFile.getFileSystem(moduleId, uris, lockFile);
+    }
+
+    private synchronized Future<RebootFileSystem> submitFileSystem(final URI uri,
+        final boolean recordTimeline) throws InstantiationException, IllegalAccessException,
+        ClassNotFoundException, NoSuchMethodException, InvocationTargetException,
+        RebootException
+    {
+        Future<RebootFileSystem> future = fileSystems.get(uri);
+        if (future != null)
+        {
+            return future;
+        }
+
+        // resolvers are loaded on this thread since loading a resolver may
+        // require creating more class loaders
+        final URIResolver uriResolver = findURIResolver(uri);
+
+        future = getResolverExecutor().submit(new Callable<RebootFileSystem>()
+        {
+            @Override
+            public RebootFileSystem call() throws RebootException
+            {
+                long start = System.currentTimeMillis();
+                try
+                {
+                    return FileSystemPool.getInstance().intern(uriResolver.resolve(uri));
+                }
+                catch (IOException e)
+                {
+                    throw new RebootException("Unable to fingerprint " + uri, e);
+                }
+                finally
+                {
+                    if (recordTimeline)
+                    {
+                        timeline.add(new ResolutionEvent(uri, Thread.currentThread()
+                            .getName(), start, System.currentTimeMillis()));
+                    }
+                }
+            }
+        });
+        fileSystems.put(uri, future);
+        return future;
+    }
+
+    private synchronized ExecutorService getResolverExecutor()
+    {
+        if (resolverExecutor == null)
+        {
+            ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 5,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new RebootThreadFactory("reboot-resolver"));
+            executor.allowCoreThreadTimeOut(true);
+            resolverExecutor = executor;
+        }
+        return resolverExecutor;
+    }
+
+    private void reportTimeline()
+    {
+        List<ResolutionEvent> events;
+        synchronized (timeline)
+        {
+            if (timeline.isEmpty())
+            {
+                return;
+            }
+            events = new ArrayList<ResolutionEvent>(timeline);
+            timeline.clear();
+        }
+
+        Collections.sort(events, new Comparator<ResolutionEvent>()
+        {
+            @Override
+            public int compare(ResolutionEvent event1, ResolutionEvent event2)
+            {
+                return event1.start < event2.start ? -1 : event1.start == event2.start ? 0 : 1;
+            }
+        });
+
+        long end = resolutionStart;
+        StringBuilder lines = new StringBuilder();
+        for (ResolutionEvent event : events)
+        {
+            end = Math.max(end, event.end);
+            lines.append(NEW_LINE).append(
+                String.format("  +%5d ms %6d ms  %s  %s", Long.valueOf(event.start
+                    - resolutionStart), Long.valueOf(event.end - event.start),
+                    event.threadName, event.uri));
+        }
+
+        Reboot.info("Resolved " + events.size() + " URIs in " + (end - resolutionStart)
+            + " ms:" + lines);
+    }
+
+    /**
+     * Describes which modules have been activated in lazy mode, so the amount
+     * of startup work that was avoided can be seen.
+     * 
+     * @return a report of the activation state of each module, or null if
+     *         lazy mode is not enabled
+     */
+    public synchronized String getActivationReport()
+    {
+        if (!LAZY)
+        {
+            return null;
+        }
+
+        int activated = 0;
+        int skippedURIs = 0;
+        StringBuilder lines = new StringBuilder();
+        for (LazyFileSystem lazyFileSystem : lazyFileSystems)
+        {
+            lines.append(NEW_LINE);
+            if (lazyFileSystem.isActivated())
+            {
+                activated++;
+                String activatedBy = lazyFileSystem.getActivatedBy();
+                lines.append(String.format("  %-30s activated in %6d ms by %s",
+                    lazyFileSystem.getModuleName(),
+                    Long.valueOf(lazyFileSystem.getActivationTime()),
+                    activatedBy == null ? "fingerprint" : activatedBy));
+            }
+            else
+            {
+                skippedURIs += lazyFileSystem.getUris().size();
+                lines.append(String.format("  %-30s not activated, %d URIs not resolved",
+                    lazyFileSystem.getModuleName(),
+                    Integer.valueOf(lazyFileSystem.getUris().size())));
+            }
+        }
+
+        return "Activated " + activated + " of " + lazyFileSystems.size()
+            + " modules, skipped resolving " + skippedURIs + " URIs:" + lines;
+    }
+
     public RebootFileSystem getFileSystem(List<URI> uris) throws InstantiationException,
         IllegalAccessException, ClassNotFoundException, NoSuchMethodException,
         InvocationTargetException, RebootException
+    {
+        return getFileSystem(uris, true);
+    }
+
+    RebootFileSystem getFileSystem(List<URI> uris, boolean recordTimeline)
+        throws InstantiationException, IllegalAccessException, ClassNotFoundException,
+        NoSuchMethodException, InvocationTargetException, RebootException
     {
         if (uris.size() == 1)
         {
-            return getFileSystem(uris.get(0));
+            return getFileSystem(uris.get(0), recordTimeline);
+        }
+
+        // submit everything before waiting so the URIs resolve in parallel
+        for (URI uri : uris)
+        {
+            submitFileSystem(uri, recordTimeline);
         }
 
         List<RebootFileSystem> fileSystems = new ArrayList<RebootFileSystem>(uris.size());
         for (URI uri : uris)
         {
-            fileSystems.add(getFileSystem(uri));
+            fileSystems.add(getFileSystem(uri, recordTimeline));
         }
 
-        return new UnionFileSystem(fileSystems);
+        // modules with the same URIs share one union, and so share everything
+        // the union remembers
+        try
+        {
+            return FileSystemPool.getInstance().intern(new UnionFileSystem(fileSystems));
+        }
+        catch (IOException e)
+        {
+            throw new RebootException("Unable to fingerprint " + uris, e);
+        }
     }
 
     public RebootFileSystem getFileSystem(URI uri) throws InstantiationException,
         IllegalAccessException, ClassNotFoundException, NoSuchMethodException,
         InvocationTargetException, RebootException
+    {
+        return getFileSystem(uri, true);
+    }
+
+    private RebootFileSystem getFileSystem(URI uri, boolean recordTimeline)
+        throws InstantiationException, IllegalAccessException, ClassNotFoundException,
+        NoSuchMethodException, InvocationTargetException, RebootException
+    {
+        Future<RebootFileSystem> future = submitFileSystem(uri, recordTimeline);
+        try
+        {
+            RebootFileSystem fileSystem = future.get();
+            saveLockFile();
+            return fileSystem;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RebootException("Interrupted while resolving " + uri, e);
+        }
+        catch (ExecutionException e)
+        {
+            // allow failed URIs to be retried
+            synchronized (this)
+            {
+                if (fileSystems.get(uri) == future)
+                {
+                    fileSystems.remove(uri);
+                }
+            }
+
+            if (e.getCause() instanceof RebootException)
+            {
+                throw (RebootException) e.getCause();
+            }
+            throw new RebootException("Error resolving " + uri, e.getCause());
+        }
+    }
+
+    private void saveLockFile()
+    {
+        if (lockFile != null)
+        {
+            try
+            {
+                lockFile.save();
+            }
+            catch (IOException e)
+            {
+                Reboot.info("Unable to save " + lockFile.getFile() + ": " + e);
+            }
+        }
+    }
+
+    private URIResolver findURIResolver(URI uri) throws InstantiationException,
+        IllegalAccessException, ClassNotFoundException, NoSuchMethodException,
+        InvocationTargetException, RebootException
     {
         if (uri.getScheme().equals("file"))
         {
-            return FileURIResolver.getInstance().resolve(uri);
+            return FileURIResolver.getInstance();
         }
 
         List<URIResolverConfig> uriResolverConfigs = rebootConfig.getUriResolvers();
@@ -225,8 +628,7 @@ public class ApplicationContext
             {
                 if (uriResolverConfig.getExpression().matcher(fullURIString).matches())
                 {
-                    URIResolver uriResolver = getURIResolver(uriResolverConfig);
-                    return uriResolver.resolve(uri);
+                    return getURIResolver(uriResolverConfig);
                 }
             }
         }
@@ -241,9 +643,18 @@ public class ApplicationContext
         URIResolver uriResolver = uriResolvers.get(uriResolverConfig);
         if (uriResolver == null)
         {
-            uriResolver =
-                getEntryPointClass(uriResolverConfig).asSubclass(URIResolver.class)
-                    .newInstance();
+            Class<? extends URIResolver> uriResolverClass =
+                getEntryPointClass(uriResolverConfig).asSubclass(URIResolver.class);
+            try
+            {
+                uriResolver =
+                    uriResolverClass.getConstructor(URIResolverContext.class).newInstance(
+                        uriResolverContext);
+            }
+            catch (NoSuchMethodException e)
+            {
+                uriResolver = uriResolverClass.newInstance();
+            }
             uriResolvers.put(uriResolverConfig, uriResolver);
         }
         return uriResolver;
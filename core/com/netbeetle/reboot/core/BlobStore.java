@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A content addressed store of downloaded files, keyed by their SHA-1 hash,
+ * with a small file mapping each URI to the hash of its content. The same
+ * file downloaded from several URIs is stored once, and since every URI
+ * resolves to the same path it is also opened and indexed once. Hashes of
+ * blobs in other algorithms are recorded as aliases of their SHA-1 hash, so
+ * content known only by a stronger checksum can be found too.
+ */
+public class BlobStore
+{
+    private static class LazyLoader
+    {
+        private static final BlobStore INSTANCE = new BlobStore(Reboot.getCacheDirectory());
+    }
+
+    public static BlobStore getInstance()
+    {
+        return LazyLoader.INSTANCE;
+    }
+
+    private final File cacheDirectory;
+
+    public BlobStore(File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @return the path of a blob relative to the cache directory, which is
+     *         also its path when the cache is served to peers
+     */
+    public static String getRelativePath(String hash)
+    {
+        return "blobs/sha1/" + hash.substring(0, 2) + '/' + hash.substring(2);
+    }
+
+    /**
+     * @param algorithm
+     *            the lower case name of a hash algorithm other than SHA-1,
+     *            such as "sha256"
+     * @return the path of the alias of a blob relative to the cache directory,
+     *         which is also its path when the cache is served to peers
+     */
+    public static String getAliasPath(String algorithm, String hash)
+    {
+        return "blob-aliases/" + algorithm + '/' + hash.substring(0, 2) + '/'
+            + hash.substring(2);
+    }
+
+    /**
+     * @return the path of the file mapping a URI to its content relative to
+     *         the cache directory, which is also its path when the cache is
+     *         served to peers
+     */
+    public static String getMappingPath(URI uri) throws IOException
+    {
+        try
+        {
+            return "blob-uris/" + HashUtil.hash(uri.toString());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Unable to compute hash", e);
+        }
+    }
+
+    /**
+     * @return the blob with the given hash, which may not exist
+     */
+    public File getBlob(String hash)
+    {
+        return new File(cacheDirectory, getRelativePath(hash));
+    }
+
+    /**
+     * Moves a file into the store. If the store already holds the same
+     * content the file is deleted instead.
+     *
+     * @param file
+     *            a complete file, which must not be modified afterwards
+     * @param hash
+     *            the SHA-1 hash of the file
+     * @return the blob
+     */
+    public File add(File file, String hash) throws IOException
+    {
+        File blob = getBlob(hash);
+        if (blob.isFile())
+        {
+            file.delete();
+            return blob;
+        }
+
+        blob.getParentFile().mkdirs();
+        FileUtil.replace(file, blob);
+        return blob;
+    }
+
+    /**
+     * Looks up the content last stored for a URI.
+     *
+     * @return the blob, or null if the URI has no content in the store
+     */
+    public File lookup(URI uri) throws IOException
+    {
+        File mappingFile = getMappingFile(uri);
+        if (!mappingFile.isFile())
+        {
+            return null;
+        }
+
+        String mapping = new String(FileUtil.read(mappingFile), "UTF-8");
+        int end = mapping.indexOf(' ');
+        if (end != 40)
+        {
+            // a damaged mapping is simply replaced
+            return null;
+        }
+
+        File blob = getBlob(mapping.substring(0, end));
+        return blob.isFile() ? blob : null;
+    }
+
+    /**
+     * Looks up the SHA-1 hash of a blob from its hash in another algorithm.
+     *
+     * @return the SHA-1 hash, or null if no blob with the hash was recorded
+     */
+    public String lookupAlias(String algorithm, String hash) throws IOException
+    {
+        File aliasFile = new File(cacheDirectory, getAliasPath(algorithm, hash));
+        if (!aliasFile.isFile())
+        {
+            return null;
+        }
+
+        String alias = new String(FileUtil.read(aliasFile), "UTF-8").trim();
+        return alias.length() == 40 ? alias : null;
+    }
+
+    /**
+     * Records the hash of a blob in another algorithm.
+     */
+    public void alias(String algorithm, String hash, String sha1) throws IOException
+    {
+        File aliasFile = new File(cacheDirectory, getAliasPath(algorithm, hash));
+        if (!aliasFile.isFile())
+        {
+            FileUtil.write(aliasFile, (sha1 + '\n').getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Records the content of a URI.
+     */
+    public void map(URI uri, String hash) throws IOException
+    {
+        FileUtil.write(getMappingFile(uri), (hash + ' ' + uri + '\n').getBytes("UTF-8"));
+    }
+
+    private File getMappingFile(URI uri) throws IOException
+    {
+        return new File(cacheDirectory, getMappingPath(uri));
+    }
+}
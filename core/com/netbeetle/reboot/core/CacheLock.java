@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock on a location in the cache that is held across processes, so that
+ * only one process downloads or updates the location while the others wait
+ * and then reuse the result. Threads in the same process queue on an
+ * ordinary lock, since file locks are held on behalf of the whole process.
+ * The lock is reentrant.
+ */
+public class CacheLock
+{
+    // waits shorter than this are not worth reporting
+    private static final long REPORT_THRESHOLD = 100;
+
+    private static final ConcurrentMap<File, CacheLock> LOCKS =
+        new ConcurrentHashMap<File, CacheLock>();
+
+    private final File location;
+    private final File lockFile;
+    private final ReentrantLock threadLock = new ReentrantLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+
+    private CacheLock(File location, File lockFile)
+    {
+        this.location = location;
+        this.lockFile = lockFile;
+    }
+
+    /**
+     * Gets the lock for a location in the cache. The lock is only a
+     * convention, so every process must lock the same location before
+     * changing it.
+     *
+     * @param location
+     *            a file or directory in the cache, which need not exist
+     */
+    public static CacheLock get(File location) throws IOException
+    {
+        location = location.getAbsoluteFile();
+        CacheLock lock = LOCKS.get(location);
+        if (lock == null)
+        {
+            File lockFile;
+            try
+            {
+                lockFile =
+                    new File(Reboot.getCacheDirectory(), "locks/"
+                        + HashUtil.hash(location.getPath()));
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IOException("Unable to compute hash", e);
+            }
+
+            lock = new CacheLock(location, lockFile);
+            CacheLock existing = LOCKS.putIfAbsent(location, lock);
+            if (existing != null)
+            {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Waits for the lock, reporting the wait if it was long enough to notice.
+     */
+    public void lock() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        threadLock.lock();
+        if (threadLock.getHoldCount() > 1)
+        {
+            return;
+        }
+
+        try
+        {
+            lockFile.getParentFile().mkdirs();
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+            {
+                Reboot.info("Waiting for another process to finish with " + location);
+                fileLock = channel.lock();
+            }
+        }
+        catch (IOException e)
+        {
+            release();
+            throw e;
+        }
+
+        long wait = System.currentTimeMillis() - start;
+        if (wait >= REPORT_THRESHOLD)
+        {
+            Reboot.info("Waited " + wait + " ms for the lock on " + location);
+        }
+    }
+
+    public void unlock() throws IOException
+    {
+        if (threadLock.getHoldCount() > 1)
+        {
+            threadLock.unlock();
+            return;
+        }
+        release();
+    }
+
+    private void release() throws IOException
+    {
+        try
+        {
+            if (channel != null)
+            {
+                // closing the channel also releases the file lock
+                channel.close();
+            }
+        }
+        finally
+        {
+            channel = null;
+            fileLock = null;
+            threadLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An index of the classes in a single module. The index is built by reading
+ * just enough of each class file to find the supertypes and class level
+ * annotations, so frameworks can scan for annotated classes without loading
+ * or fully parsing every class.
+ */
+public class ClassIndex
+{
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private final Map<String, ClassMetadata> classes;
+
+    private ClassIndex(Map<String, ClassMetadata> classes)
+    {
+        this.classes = Collections.unmodifiableMap(classes);
+    }
+
+    public Collection<ClassMetadata> getClasses()
+    {
+        return classes.values();
+    }
+
+    public ClassMetadata getClassMetadata(String className)
+    {
+        return classes.get(className);
+    }
+
+    public List<ClassMetadata> getAnnotatedClasses(String annotationName)
+    {
+        List<ClassMetadata> result = new ArrayList<ClassMetadata>();
+        for (ClassMetadata metadata : classes.values())
+        {
+            if (metadata.getAnnotationNames().contains(annotationName))
+            {
+                result.add(metadata);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds classes that directly extend or implement a type. Indirect
+     * subtypes can be found by calling this method again for each result.
+     *
+     * @param typeName
+     *            the name of a class or interface
+     * @return the classes in this index that name the type as their superclass
+     *         or as one of their interfaces
+     */
+    public List<ClassMetadata> getDirectSubtypes(String typeName)
+    {
+        List<ClassMetadata> result = new ArrayList<ClassMetadata>();
+        for (ClassMetadata metadata : classes.values())
+        {
+            if (typeName.equals(metadata.getSuperclassName())
+                || metadata.getInterfaceNames().contains(typeName))
+            {
+                result.add(metadata);
+            }
+        }
+        return result;
+    }
+
+    public static ClassIndex build(RebootFile root) throws IOException
+    {
+        Map<String, ClassMetadata> classes = new TreeMap<String, ClassMetadata>();
+        for (RebootFile file : root.list(true))
+        {
+            if (file.isFile() && file.getName().endsWith(".class"))
+            {
+                ClassMetadata metadata = scan(file.getBytes());
+                if (metadata != null)
+                {
+                    classes.put(metadata.getName(), metadata);
+                }
+            }
+        }
+        return new ClassIndex(classes);
+    }
+
+    /**
+     * Reads the header of a class file. The constant pool, supertypes and
+     * class attributes are parsed, but fields and methods are skipped over.
+     *
+     * @param bytes
+     *            the contents of a class file
+     * @return the metadata for the class, or null if the bytes are not a
+     *         class file
+     * @throws IOException
+     *             if the class file is truncated
+     */
+    public static ClassMetadata scan(byte[] bytes) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (input.readInt() != 0xCAFEBABE)
+        {
+            return null;
+        }
+        input.skipBytes(4);
+
+        int constantPoolCount = input.readUnsignedShort();
+        String[] utf8 = new String[constantPoolCount];
+        int[] classNames = new int[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++)
+        {
+            int tag = input.readUnsignedByte();
+            switch (tag)
+            {
+                case CONSTANT_UTF8:
+                    utf8[i] = input.readUTF();
+                    break;
+                case CONSTANT_CLASS:
+                    classNames[i] = input.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    input.skipBytes(2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    input.skipBytes(3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    input.skipBytes(4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // eight byte constants take up two entries
+                    input.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        int access = input.readUnsignedShort();
+        String name = className(utf8, classNames, input.readUnsignedShort());
+        String superclassName = className(utf8, classNames, input.readUnsignedShort());
+
+        int interfaceCount = input.readUnsignedShort();
+        List<String> interfaceNames = new ArrayList<String>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++)
+        {
+            interfaceNames.add(className(utf8, classNames, input.readUnsignedShort()));
+        }
+
+        // skip fields and then methods
+        for (int i = 0; i < 2; i++)
+        {
+            int memberCount = input.readUnsignedShort();
+            for (int j = 0; j < memberCount; j++)
+            {
+                input.skipBytes(6);
+                skipAttributes(input);
+            }
+        }
+
+        List<String> annotationNames = new ArrayList<String>();
+        int attributeCount = input.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++)
+        {
+            String attributeName = utf8[input.readUnsignedShort()];
+            int length = input.readInt();
+            if ("RuntimeVisibleAnnotations".equals(attributeName)
+                || "RuntimeInvisibleAnnotations".equals(attributeName))
+            {
+                int annotationCount = input.readUnsignedShort();
+                for (int j = 0; j < annotationCount; j++)
+                {
+                    String descriptor = utf8[input.readUnsignedShort()];
+                    annotationNames.add(descriptor.substring(1, descriptor.length() - 1)
+                        .replace('/', '.'));
+                    skipAnnotationValues(input);
+                }
+            }
+            else
+            {
+                input.skipBytes(length);
+            }
+        }
+
+        return new ClassMetadata(name, access, superclassName, interfaceNames,
+            annotationNames);
+    }
+
+    private static String className(String[] utf8, int[] classNames, int index)
+    {
+        if (index == 0)
+        {
+            return null;
+        }
+        return utf8[classNames[index]].replace('/', '.');
+    }
+
+    private static void skipAttributes(DataInputStream input) throws IOException
+    {
+        int attributeCount = input.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++)
+        {
+            input.skipBytes(2);
+            input.skipBytes(input.readInt());
+        }
+    }
+
+    private static void skipAnnotationValues(DataInputStream input) throws IOException
+    {
+        int pairCount = input.readUnsignedShort();
+        for (int i = 0; i < pairCount; i++)
+        {
+            input.skipBytes(2);
+            skipElementValue(input);
+        }
+    }
+
+    private static void skipElementValue(DataInputStream input) throws IOException
+    {
+        int tag = input.readUnsignedByte();
+        switch (tag)
+        {
+            case 'e':
+                input.skipBytes(4);
+                break;
+            case '@':
+                input.skipBytes(2);
+                skipAnnotationValues(input);
+                break;
+            case '[':
+                int valueCount = input.readUnsignedShort();
+                for (int i = 0; i < valueCount; i++)
+                {
+                    skipElementValue(input);
+                }
+                break;
+            default:
+                // constants, strings and classes are a single index
+                input.skipBytes(2);
+                break;
+        }
+    }
+
+    /**
+     * Reads an index saved by {@link #write(File)}.
+     *
+     * @param file
+     *            the saved index
+     * @return the index, or null if the file doesn't exist or is damaged
+     */
+    public static ClassIndex read(File file)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        Map<String, ClassMetadata> classes = new TreeMap<String, ClassMetadata>();
+        try
+        {
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                String line = reader.readLine();
+                while (line != null)
+                {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 5)
+                    {
+                        return null;
+                    }
+                    classes.put(fields[0], new ClassMetadata(fields[0], Integer
+                        .parseInt(fields[1]), fields[2].isEmpty() ? null : fields[2],
+                        split(fields[3]), split(fields[4])));
+                    line = reader.readLine();
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+        return new ClassIndex(classes);
+    }
+
+    private static List<String> split(String value)
+    {
+        if (value.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(value.split(","));
+    }
+
+    public void write(File file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+        for (ClassMetadata metadata : classes.values())
+        {
+            writer.write(metadata.getName());
+            writer.write('\t');
+            writer.write(Integer.toString(metadata.getAccess()));
+            writer.write('\t');
+            if (metadata.getSuperclassName() != null)
+            {
+                writer.write(metadata.getSuperclassName());
+            }
+            writer.write('\t');
+            join(writer, metadata.getInterfaceNames());
+            writer.write('\t');
+            join(writer, metadata.getAnnotationNames());
+            writer.write('\n');
+        }
+        writer.close();
+        FileUtil.write(file, bytes.toByteArray());
+    }
+
+    private static void join(Writer writer, List<String> values) throws IOException
+    {
+        for (int i = 0; i < values.size(); i++)
+        {
+            if (i > 0)
+            {
+                writer.write(',');
+            }
+            writer.write(values.get(i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.util.List;
+
+/**
+ * The names of a class, its supertypes and its class level annotations, as
+ * read from a class file without loading the class.
+ */
+public class ClassMetadata
+{
+    private final String name;
+    private final int access;
+    private final String superclassName;
+    private final List<String> interfaceNames;
+    private final List<String> annotationNames;
+
+    public ClassMetadata(String name, int access, String superclassName,
+        List<String> interfaceNames, List<String> annotationNames)
+    {
+        this.name = name;
+        this.access = access;
+        this.superclassName = superclassName;
+        this.interfaceNames = interfaceNames;
+        this.annotationNames = annotationNames;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the access flags of the class, as defined by
+     *         {@link java.lang.reflect.Modifier}
+     */
+    public int getAccess()
+    {
+        return access;
+    }
+
+    /**
+     * @return the name of the superclass, or null for java.lang.Object and
+     *         module-info classes
+     */
+    public String getSuperclassName()
+    {
+        return superclassName;
+    }
+
+    public List<String> getInterfaceNames()
+    {
+        return interfaceNames;
+    }
+
+    /**
+     * @return the names of both runtime visible and invisible class level
+     *         annotations
+     */
+    public List<String> getAnnotationNames()
+    {
+        return annotationNames;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns file systems so that every module, and every application context in
+ * the same JVM, that resolves to the same contents shares one file system
+ * instance. File systems are identified by their fingerprint, so anything
+ * remembered by a file system is only built once.
+ */
+public class FileSystemPool
+{
+    private static final FileSystemPool INSTANCE = new FileSystemPool();
+
+    private final ConcurrentMap<String, RebootFileSystem> fileSystems =
+        new ConcurrentHashMap<String, RebootFileSystem>();
+
+    public static FileSystemPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @param fileSystem
+     *            a newly resolved file system
+     * @return the pooled file system with the same fingerprint, or the given
+     *         file system if it is the first with its fingerprint or it cannot
+     *         be fingerprinted
+     * @throws IOException
+     *             if the file system cannot be fingerprinted
+     */
+    public RebootFileSystem intern(RebootFileSystem fileSystem) throws IOException
+    {
+        String fingerprint = fileSystem.fingerprint();
+        if (fingerprint == null)
+        {
+            return fileSystem;
+        }
+
+        RebootFileSystem existing = fileSystems.putIfAbsent(fingerprint, fileSystem);
+        return existing == null ? fileSystem : existing;
+    }
+}
@@ -37,7 +37,8 @@ public class FileURIResolver implements URIResolver
     }
 
     private final Object lock = new Object();
-    private final Map<URI, ZipFile> zipFiles = new ConcurrentHashMap<URI, ZipFile>();
+    private final Map<URI, ZipFileSystem> zipFileSystems =
+        new ConcurrentHashMap<URI, ZipFileSystem>();
 
     @Override
     public RebootFileSystem resolve(URI uri) throws RebootException
@@ -56,17 +57,19 @@ public class FileURIResolver implements URIResolver
 
         if (file.isFile())
         {
-            ZipFile zipFile = zipFiles.get(uri);
-            if (zipFile == null)
+            // each zip file is opened once and its file system is reused, so
+            // the fingerprint is only computed once
+            ZipFileSystem zipFileSystem = zipFileSystems.get(uri);
+            if (zipFileSystem == null)
             {
                 synchronized (lock)
                 {
-                    zipFile = zipFiles.get(uri);
-                    if (zipFile == null)
+                    zipFileSystem = zipFileSystems.get(uri);
+                    if (zipFileSystem == null)
                     {
                         try
                         {
-                            zipFile = new ZipFile(file);
+                            zipFileSystem = new ZipFileSystem(new ZipFile(file));
                         }
                         catch (ZipException e)
                         {
@@ -76,12 +79,12 @@ public class FileURIResolver implements URIResolver
                         {
                             throw new RebootException(e);
                         }
-                        zipFiles.put(uri, zipFile);
+                        zipFileSystems.put(uri, zipFileSystem);
                     }
                 }
             }
 
-            return new ZipFileSystem(zipFile);
+            return zipFileSystem;
         }
 
         throw new RebootException("File not found");
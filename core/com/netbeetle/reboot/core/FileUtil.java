@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class FileUtil
+{
+    /**
+     * Creates a temporary file in the same directory as the target file, so
+     * the temporary file can later be renamed over the target.
+     *
+     * @param file
+     *            the file that will eventually be replaced
+     * @return a new empty temporary file
+     * @throws IOException
+     *             if the temporary file cannot be created
+     */
+    public static File createTempFile(File file) throws IOException
+    {
+        File directory = file.getParentFile();
+        directory.mkdirs();
+        return File.createTempFile(file.getName() + '.', ".tmp", directory);
+    }
+
+    /**
+     * Moves a file into place, replacing any existing file. Readers will see
+     * either the old file or the new file, never a partially written file.
+     *
+     * @param source
+     *            the fully written file
+     * @param target
+     *            the file to replace
+     * @throws IOException
+     *             if the file cannot be moved
+     */
+    public static void replace(File source, File target) throws IOException
+    {
+        if (source.renameTo(target))
+        {
+            return;
+        }
+
+        // renaming over an existing file fails on some platforms
+        target.delete();
+        if (!source.renameTo(target))
+        {
+            throw new IOException("Unable to rename " + source + " to " + target);
+        }
+    }
+
+    public static byte[] read(File file) throws IOException
+    {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("File too large to be loaded as bytes");
+        }
+
+        byte[] bytes = new byte[(int) length];
+        FileInputStream inputStream = new FileInputStream(file);
+        try
+        {
+            int offset = 0;
+            while (offset != bytes.length)
+            {
+                int bytesRead = inputStream.read(bytes, offset, bytes.length - offset);
+                if (bytesRead == -1)
+                {
+                    throw new IOException("File shorter than expected");
+                }
+                offset += bytesRead;
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+        return bytes;
+    }
+
+    public static void write(File file, byte[] bytes) throws IOException
+    {
+        File tempFile = createTempFile(file);
+        boolean success = false;
+        try
+        {
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try
+            {
+                outputStream.write(bytes);
+            }
+            finally
+            {
+                outputStream.close();
+            }
+            replace(tempFile, file);
+            success = true;
+        }
+        finally
+        {
+            if (!success)
+            {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it.
+     *
+     * @return true if the file no longer exists
+     */
+    public static boolean deleteRecursively(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (File child : files)
+            {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    private FileUtil()
+    {
+        // prevent instantiation
+    }
+}
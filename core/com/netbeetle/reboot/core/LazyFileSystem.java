@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * A file system that doesn't resolve its URIs until the first time a file is
+ * requested from it.
+ */
+public class LazyFileSystem implements RebootFileSystem
+{
+    private final ApplicationContext applicationContext;
+    private final String moduleName;
+    private final List<URI> uris;
+    private volatile RebootFileSystem fileSystem;
+    private String activatedBy;
+    private long activationTime = -1;
+
+    public LazyFileSystem(ApplicationContext applicationContext, String moduleName,
+        List<URI> uris)
+    {
+        this.applicationContext = applicationContext;
+        this.moduleName = moduleName;
+        this.uris = uris;
+    }
+
+    public String getModuleName()
+    {
+        return moduleName;
+    }
+
+    public List<URI> getUris()
+    {
+        return uris;
+    }
+
+    /**
+     * Describes the URIs in a way that identifies the contents without
+     * activating the file system. A URI is described by its pin in the lock
+     * file, or if it isn't pinned but names a local file such as a jar, by
+     * the size and modification time of that file.
+     *
+     * @return the description, or null if any of the URIs can't be described
+     */
+    public String getPinnedURIs()
+    {
+        LockFile lockFile = applicationContext.getLockFile();
+        StringBuilder builder = new StringBuilder();
+        for (URI uri : uris)
+        {
+            String pin = lockFile == null ? null : lockFile.get(uri);
+            if (pin == null && "file".equals(uri.getScheme()))
+            {
+                pin = describeFile(uri);
+            }
+            if (pin == null)
+            {
+                return null;
+            }
+            builder.append(uri).append(' ').append(pin).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String describeFile(URI uri)
+    {
+        File file;
+        try
+        {
+            file = new File(uri);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        // directories are left out since their contents can change without
+        // changing their modification time
+        return file.isFile() ? file.length() + " " + file.lastModified() : null;
+    }
+
+    public boolean isActivated()
+    {
+        return fileSystem != null;
+    }
+
+    /**
+     * @return the name of the file whose lookup triggered activation, or null
+     *         if the file system has not been activated
+     */
+    public synchronized String getActivatedBy()
+    {
+        return activatedBy;
+    }
+
+    /**
+     * @return the number of milliseconds spent resolving the URIs, or -1 if
+     *         the file system has not been activated
+     */
+    public synchronized long getActivationTime()
+    {
+        return activationTime;
+    }
+
+    private RebootFileSystem activate(String name) throws IOException
+    {
+        RebootFileSystem result = fileSystem;
+        if (result != null)
+        {
+            return result;
+        }
+
+        synchronized (this)
+        {
+            if (fileSystem == null)
+            {
+                long start = System.currentTimeMillis();
+                try
+                {
+                    fileSystem = applicationContext.getFileSystem(uris, false);
+                }
+                catch (Exception e)
+                {
+                    throw new IOException("Unable to activate module " + moduleName, e);
+                }
+                activationTime = System.currentTimeMillis() - start;
+                activatedBy = name;
+                Reboot.info("Activated module " + moduleName + " in " + activationTime
+                    + " ms");
+            }
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public RebootFile getFile(String name) throws IOException
+    {
+        return activate(name).getFile(name);
+    }
+
+    @Override
+    public String fingerprint() throws IOException
+    {
+        return activate(null).fingerprint();
+    }
+}
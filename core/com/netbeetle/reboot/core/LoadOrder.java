@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the order in which each module defines its classes. Recording is
+ * enabled by setting the com.netbeetle.reboot.recordLoadOrder system property
+ * to true; the order is saved when the JVM exits, keyed by the fingerprint of
+ * each module's file system, so later tools can lay out or preload classes in
+ * the order the application actually uses them.
+ */
+public class LoadOrder
+{
+    private static final boolean RECORDING = Boolean
+        .getBoolean("com.netbeetle.reboot.recordLoadOrder");
+
+    private static final Map<RebootClassLoader, List<String>> RECORDED =
+        new LinkedHashMap<RebootClassLoader, List<String>>();
+    private static boolean hookRegistered = false;
+
+    public static boolean isRecording()
+    {
+        return RECORDING;
+    }
+
+    /**
+     * @param classLoader
+     *            the class loader that defined the class
+     * @param fileName
+     *            the name of the class file
+     */
+    public static void record(RebootClassLoader classLoader, String fileName)
+    {
+        synchronized (RECORDED)
+        {
+            List<String> fileNames = RECORDED.get(classLoader);
+            if (fileNames == null)
+            {
+                fileNames = new ArrayList<String>();
+                RECORDED.put(classLoader, fileNames);
+            }
+            fileNames.add(fileName);
+
+            if (!hookRegistered)
+            {
+                Runtime.getRuntime().addShutdownHook(new Thread("reboot-load-order")
+                {
+                    @Override
+                    public void run()
+                    {
+                        save();
+                    }
+                });
+                hookRegistered = true;
+            }
+        }
+    }
+
+    private static void save()
+    {
+        Map<RebootClassLoader, List<String>> recorded;
+        synchronized (RECORDED)
+        {
+            recorded = new LinkedHashMap<RebootClassLoader, List<String>>(RECORDED);
+        }
+
+        int saved = 0;
+        for (Map.Entry<RebootClassLoader, List<String>> entry : recorded.entrySet())
+        {
+            String moduleName = entry.getKey().getModuleName();
+            try
+            {
+                String fingerprint = entry.getKey().getFileSystem().fingerprint();
+                if (fingerprint == null)
+                {
+                    continue;
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (String fileName : entry.getValue())
+                {
+                    bytes.write(fileName.getBytes("UTF-8"));
+                    bytes.write('\n');
+                }
+                FileUtil.write(getFile(fingerprint), bytes.toByteArray());
+                saved++;
+            }
+            catch (IOException e)
+            {
+                Reboot.info("Unable to save the load order of " + moduleName + ": " + e);
+            }
+        }
+        Reboot.info("Recorded the load order of " + saved + " modules");
+    }
+
+    /**
+     * @param fingerprint
+     *            the fingerprint of a module's file system
+     * @return the class files defined by the module in the order they were
+     *         first defined, or an empty list if no order has been recorded
+     */
+    public static List<String> read(String fingerprint)
+    {
+        File file = getFile(fingerprint);
+        if (!file.isFile())
+        {
+            return Collections.emptyList();
+        }
+
+        List<String> fileNames = new ArrayList<String>();
+        try
+        {
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                String line = reader.readLine();
+                while (line != null)
+                {
+                    if (!line.isEmpty())
+                    {
+                        fileNames.add(line);
+                    }
+                    line = reader.readLine();
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Reboot.info("Unable to read " + file + ": " + e);
+            return Collections.emptyList();
+        }
+        return fileNames;
+    }
+
+    private static File getFile(String fingerprint)
+    {
+        return new File(Reboot.getCacheDirectory(), "load-order/" + fingerprint);
+    }
+
+    private LoadOrder()
+    {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pins the URIs used by an application to exact content, such as a Git commit
+ * and tree or the hash of a downloaded file. Resolvers that find a pin can use
+ * it directly instead of looking up refs or checking the network. The format
+ * of each pin is up to the resolver that created it.
+ */
+public class LockFile
+{
+    private static final String HEADER =
+        "# Pinned URIs, written by Reboot. Run \"rbt lock\" to update the pins.";
+
+    private final File file;
+    private final Map<String, String> pins = new TreeMap<String, String>();
+    private boolean updating = false;
+    private boolean changed = false;
+
+    public LockFile(File file)
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized void load() throws IOException
+    {
+        pins.clear();
+        changed = false;
+        if (!file.isFile())
+        {
+            return;
+        }
+
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line = reader.readLine();
+            while (line != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                {
+                    int index = line.indexOf(' ');
+                    if (index == -1)
+                    {
+                        throw new IOException("Invalid line in " + file + ": " + line);
+                    }
+                    pins.put(line.substring(0, index), line.substring(index + 1).trim());
+                }
+                line = reader.readLine();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the pin for a URI, or null if the URI is not pinned or the pins
+     *         are being updated
+     */
+    public synchronized String get(URI uri)
+    {
+        if (updating)
+        {
+            return null;
+        }
+        return pins.get(uri.toString());
+    }
+
+    public synchronized void put(URI uri, String pin)
+    {
+        String previous = pins.put(uri.toString(), pin);
+        if (!pin.equals(previous))
+        {
+            changed = true;
+        }
+    }
+
+    /**
+     * Discards every pin, so URIs are resolved from scratch and pinned again.
+     * Resolvers should also treat cached content as stale while updating.
+     */
+    public synchronized void update()
+    {
+        updating = true;
+        changed = true;
+        pins.clear();
+    }
+
+    public synchronized int size()
+    {
+        return pins.size();
+    }
+
+    public synchronized boolean isUpdating()
+    {
+        return updating;
+    }
+
+    /**
+     * Writes the pins if they have changed since they were loaded or saved.
+     */
+    public synchronized void save() throws IOException
+    {
+        if (!changed)
+        {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Map.Entry<String, String> pin : pins.entrySet())
+        {
+            writer.write(pin.getKey());
+            writer.write(' ');
+            writer.write(pin.getValue());
+            writer.write('\n');
+        }
+        writer.close();
+        FileUtil.write(file, bytes.toByteArray());
+        changed = false;
+    }
+}
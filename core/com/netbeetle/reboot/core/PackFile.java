@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single uncompressed archive holding the contents of every module in an
+ * application, written by the pack action. The whole archive is memory mapped
+ * and each module is read through a {@link PackFileSystem}, so launching from
+ * a pack needs no URI resolution, no decompression and only one open file.
+ * <p>
+ * The archive starts with a magic number and version, followed by the file
+ * contents and the path index of each module in turn, then a table of the
+ * modules. The last eight bytes hold the offset of the module table.
+ * <p>
+ * Only modules whose URIs are all pinned in the lock file are packed, along
+ * with their pins, and a packed module is only used while the lock file still
+ * has the same pins. Anything else could have changed since it was packed.
+ */
+public class PackFile
+{
+    static final int MAGIC = 0x5242544B;
+    static final int VERSION = 2;
+
+    private static class PackedModule
+    {
+        private final String uris;
+        private final PackFileSystem fileSystem;
+
+        public PackedModule(String uris, PackFileSystem fileSystem)
+        {
+            this.uris = uris;
+            this.fileSystem = fileSystem;
+        }
+    }
+
+    private final File file;
+    private final Map<String, PackedModule> modules = new HashMap<String, PackedModule>();
+
+    private PackFile(File file)
+    {
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int size()
+    {
+        return modules.size();
+    }
+
+    /**
+     * Gets the packed contents of a module. A module is only used from the
+     * pack if it still has the URIs and pins it was packed with.
+     *
+     * @param moduleId
+     *            the id of the module
+     * @param uris
+     *            the URIs the module would otherwise be resolved from
+     * @param lockFile
+     *            the lock file in use, or null if there is none
+     * @return the packed file system, or null if the module isn't packed or
+     *         its URIs or pins have changed
+     */
+    public RebootFileSystem getFileSystem(String moduleId, List<URI> uris, LockFile lockFile)
+    {
+        PackedModule module = modules.get(moduleId);
+        if (module == null || !module.uris.equals(getPinnedURIs(uris, lockFile)))
+        {
+            return null;
+        }
+        return module.fileSystem;
+    }
+
+    /**
+     * Describes the URIs of a module along with their pins, which is how a
+     * packed module is matched.
+     *
+     * @param lockFile
+     *            the lock file in use, or null if there is none
+     * @return the description, or null if any of the URIs is not pinned
+     */
+    public static String getPinnedURIs(List<URI> uris, LockFile lockFile)
+    {
+        if (lockFile == null)
+        {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (URI uri : uris)
+        {
+            String pin = lockFile.get(uri);
+            if (pin == null)
+            {
+                return null;
+            }
+            builder.append(uri).append(' ').append(pin).append('\n');
+        }
+        return builder.toString();
+    }
+
+    public static PackFile open(File file) throws IOException
+    {
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Pack file too large to be mapped: " + file);
+            }
+            buffer =
+                randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+
+        if (buffer.limit() < 16 || buffer.getInt(0) != MAGIC)
+        {
+            throw new IOException("Not a pack file: " + file);
+        }
+        if (buffer.getInt(4) != VERSION)
+        {
+            throw new IOException("Unsupported pack file version: " + file);
+        }
+
+        long tableOffset = buffer.getLong(buffer.limit() - 8);
+        if (tableOffset < 8 || tableOffset > buffer.limit() - 8)
+        {
+            throw new IOException("Damaged pack file: " + file);
+        }
+
+        // the module table is small, so it's simply copied out of the mapping
+        byte[] table = new byte[buffer.limit() - 8 - (int) tableOffset];
+        ByteBuffer tableBuffer = buffer.duplicate();
+        tableBuffer.position((int) tableOffset);
+        tableBuffer.get(table);
+
+        PackFile packFile = new PackFile(file);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(table));
+        int count = input.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            String moduleId = input.readUTF();
+            String uris = input.readUTF();
+            String fingerprint = input.readUTF();
+            int indexOffset = (int) input.readLong();
+            int entryCount = input.readInt();
+            packFile.modules.put(moduleId, new PackedModule(uris, new PackFileSystem(buffer,
+                indexOffset, entryCount, fingerprint)));
+        }
+        return packFile;
+    }
+
+    /**
+     * Hashes a path for the perfect hash index of a module. Each bucket of the
+     * index stores the seed that maps all of its paths to distinct slots.
+     */
+    static int hash(byte[] name, int seed)
+    {
+        int hash = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+        for (byte b : name)
+        {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    static int slot(int hash, int size)
+    {
+        return (hash & Integer.MAX_VALUE) % size;
+    }
+}
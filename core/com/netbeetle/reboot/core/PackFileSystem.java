@@ -0,0 +1,243 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A module stored in a {@link PackFile}. Paths are found with a perfect hash
+ * index, so a lookup reads one displacement, one record and one name from the
+ * mapped archive, and file contents are copied straight out of the mapping.
+ * <p>
+ * The index holds a displacement for each bucket, then a fixed size record for
+ * each slot, then the UTF-8 names of the paths. A positive displacement is the
+ * seed that places the bucket's paths, a negative displacement is the slot of
+ * a bucket with a single path, and zero marks an empty bucket.
+ */
+public class PackFileSystem implements RebootFileSystem
+{
+    static final int RECORD_SIZE = 20;
+    static final int DIRECTORY_FLAG = 0x80000000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private class PackDirectory extends RebootDirectory
+    {
+        public PackDirectory(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        public Collection<RebootFile> list(boolean recursive)
+        {
+            String[] names = getSortedNames();
+            String prefix = getName();
+            int start = Arrays.binarySearch(names, prefix);
+            if (start < 0)
+            {
+                start = -start - 1;
+            }
+
+            List<RebootFile> contents = new ArrayList<RebootFile>();
+            for (int i = start; i < names.length && names[i].startsWith(prefix); i++)
+            {
+                String name = names[i];
+                int slash = name.indexOf('/', prefix.length());
+                if (name.length() > prefix.length()
+                    && (recursive || slash == -1 || slash == name.length() - 1))
+                {
+                    contents.add(getFile(sortedSlots[i], name));
+                }
+            }
+            return contents;
+        }
+    }
+
+    private class PackEntryFile extends RebootFile
+    {
+        private final int slot;
+
+        public PackEntryFile(String name, int slot)
+        {
+            super(name, false);
+            this.slot = slot;
+        }
+
+        @Override
+        public long getSize()
+        {
+            return buffer.getInt(recordsOffset + slot * RECORD_SIZE + 8);
+        }
+
+        @Override
+        public byte[] getBytes()
+        {
+            int record = recordsOffset + slot * RECORD_SIZE;
+            byte[] bytes = new byte[buffer.getInt(record + 8)];
+            ByteBuffer contents = buffer.duplicate();
+            contents.position((int) buffer.getLong(record));
+            contents.get(bytes);
+            return bytes;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int displacementsOffset;
+    private final int recordsOffset;
+    private final int namesOffset;
+    private final String fingerprint;
+    private volatile String[] sortedNames;
+    private volatile int[] sortedSlots;
+
+    PackFileSystem(ByteBuffer buffer, int indexOffset, int entryCount, String fingerprint)
+    {
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.displacementsOffset = indexOffset;
+        this.recordsOffset = indexOffset + entryCount * 4;
+        this.namesOffset = recordsOffset + entryCount * RECORD_SIZE;
+        this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public RebootFile getFile(String name)
+    {
+        if (name.isEmpty())
+        {
+            return new PackDirectory(name);
+        }
+
+        boolean directory = name.endsWith("/");
+        String path = directory ? name.substring(0, name.length() - 1) : name;
+        int slot = find(path.getBytes(UTF8));
+        if (slot == -1 || (directory && !isDirectory(slot)))
+        {
+            return null;
+        }
+        return getFile(slot, path);
+    }
+
+    private RebootFile getFile(int slot, String path)
+    {
+        if (isDirectory(slot))
+        {
+            return new PackDirectory(path);
+        }
+        return new PackEntryFile(path, slot);
+    }
+
+    private int find(byte[] path)
+    {
+        if (entryCount == 0)
+        {
+            return -1;
+        }
+
+        int bucket = PackFile.slot(PackFile.hash(path, 0), entryCount);
+        int displacement = buffer.getInt(displacementsOffset + bucket * 4);
+        if (displacement == 0)
+        {
+            return -1;
+        }
+        int slot =
+            displacement < 0 ? -displacement - 1 : PackFile.slot(
+                PackFile.hash(path, displacement), entryCount);
+
+        // the index is only perfect for the packed paths, so the name still
+        // needs to be compared
+        int record = recordsOffset + slot * RECORD_SIZE;
+        int nameOffset = namesOffset + buffer.getInt(record + 12);
+        int nameLength = buffer.getInt(record + 16) & ~DIRECTORY_FLAG;
+        if (nameLength != path.length)
+        {
+            return -1;
+        }
+        for (int i = 0; i < nameLength; i++)
+        {
+            if (buffer.get(nameOffset + i) != path[i])
+            {
+                return -1;
+            }
+        }
+        return slot;
+    }
+
+    private boolean isDirectory(int slot)
+    {
+        return (buffer.getInt(recordsOffset + slot * RECORD_SIZE + 16) & DIRECTORY_FLAG) != 0;
+    }
+
+    private String getName(int slot)
+    {
+        int record = recordsOffset + slot * RECORD_SIZE;
+        byte[] name = new byte[buffer.getInt(record + 16) & ~DIRECTORY_FLAG];
+        ByteBuffer names = buffer.duplicate();
+        names.position(namesOffset + buffer.getInt(record + 12));
+        names.get(name);
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Lists every path in name order, so directories can be listed without a
+     * hash lookup for each path. Directory names end in a slash, matching the
+     * names given to {@link RebootDirectory}.
+     */
+    private String[] getSortedNames()
+    {
+        String[] names = sortedNames;
+        if (names != null)
+        {
+            return names;
+        }
+
+        synchronized (this)
+        {
+            if (sortedNames == null)
+            {
+                String[] unsorted = new String[entryCount];
+                for (int slot = 0; slot < entryCount; slot++)
+                {
+                    unsorted[slot] = getName(slot) + (isDirectory(slot) ? "/" : "");
+                }
+                names = unsorted.clone();
+                Arrays.sort(names);
+
+                int[] slots = new int[entryCount];
+                for (int slot = 0; slot < entryCount; slot++)
+                {
+                    slots[Arrays.binarySearch(names, unsorted[slot])] = slot;
+                }
+                sortedSlots = slots;
+                sortedNames = names;
+            }
+            return sortedNames;
+        }
+    }
+
+    @Override
+    public String fingerprint() throws IOException
+    {
+        return fingerprint.isEmpty() ? null : fingerprint;
+    }
+}
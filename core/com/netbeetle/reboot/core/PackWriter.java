@@ -0,0 +1,335 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link PackFile}. File contents are streamed to the archive as each
+ * module is added, in the order given, so the files a module loads first can
+ * be placed next to each other.
+ */
+public class PackWriter
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_SEED = 1 << 20;
+
+    private static class Entry
+    {
+        private final byte[] name;
+        private final boolean directory;
+        private long offset;
+        private int length;
+
+        public Entry(String name, boolean directory)
+        {
+            this.name = name.getBytes(UTF8);
+            this.directory = directory;
+        }
+    }
+
+    private final File file;
+    private final File tempFile;
+    private final DataOutputStream output;
+    private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+    private final DataOutputStream tableOutput = new DataOutputStream(table);
+    private long position = 0;
+    private int moduleCount = 0;
+
+    public PackWriter(File file) throws IOException
+    {
+        this.file = file;
+        this.tempFile = FileUtil.createTempFile(file);
+        this.output =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile),
+                65536));
+        output.writeInt(PackFile.MAGIC);
+        output.writeInt(PackFile.VERSION);
+        position = 8;
+    }
+
+    /**
+     * Adds a module to the archive. Parent directories are added for every
+     * file, so the files don't need to include directories.
+     *
+     * @param moduleId
+     *            the id of the module
+     * @param pinnedURIs
+     *            the URIs the module is resolved from along with their pins, as
+     *            described by {@link PackFile#getPinnedURIs}, which must still
+     *            match when the pack is used
+     * @param files
+     *            the files of the module in the order they should be stored
+     * @return the fingerprint of the packed contents
+     * @throws IOException
+     *             if a file cannot be read or the archive cannot be written
+     */
+    public String addModule(String moduleId, String pinnedURIs, List<RebootFile> files)
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Unable to compute hash", e);
+        }
+
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        for (RebootFile file : files)
+        {
+            String name = file.getName();
+            if (file.isDirectory())
+            {
+                addDirectories(entries, name.substring(0, name.length() - 1));
+                continue;
+            }
+            if (name.isEmpty() || entries.containsKey(name))
+            {
+                continue;
+            }
+
+            addDirectories(entries, parent(name));
+
+            byte[] bytes = file.getBytes();
+            Entry entry = new Entry(name, false);
+            entry.offset = position;
+            entry.length = bytes.length;
+            entries.put(name, entry);
+            output.write(bytes);
+            position += bytes.length;
+
+            digest.update(entry.name);
+            digest.update((byte) 0);
+            digest.update(bytes);
+        }
+
+        // directories don't change the contents of a module, but are hashed in
+        // name order so the fingerprint doesn't depend on the file order
+        List<String> names = new ArrayList<String>(entries.keySet());
+        Collections.sort(names);
+        for (String name : names)
+        {
+            if (entries.get(name).directory)
+            {
+                digest.update(name.getBytes(UTF8));
+                digest.update((byte) '/');
+            }
+        }
+        String fingerprint = HashUtil.toHexString(digest.digest());
+
+        long indexOffset = position;
+        writeIndex(new ArrayList<Entry>(entries.values()));
+
+        tableOutput.writeUTF(moduleId);
+        tableOutput.writeUTF(pinnedURIs);
+        tableOutput.writeUTF(fingerprint);
+        tableOutput.writeLong(indexOffset);
+        tableOutput.writeInt(entries.size());
+        moduleCount++;
+        return fingerprint;
+    }
+
+    private static void addDirectories(Map<String, Entry> entries, String directory)
+    {
+        String name = directory;
+        while (!name.isEmpty() && !entries.containsKey(name))
+        {
+            entries.put(name, new Entry(name, true));
+            name = parent(name);
+        }
+    }
+
+    private static String parent(String name)
+    {
+        int index = name.lastIndexOf('/');
+        return index == -1 ? "" : name.substring(0, index);
+    }
+
+    private void writeIndex(List<Entry> entries) throws IOException
+    {
+        int size = entries.size();
+        int[] displacements = new int[size];
+        Entry[] slots = new Entry[size];
+
+        // hash and displace: the largest buckets are placed first, while most
+        // slots are still free, and single entry buckets fill in the gaps
+        final List<List<Entry>> buckets = new ArrayList<List<Entry>>(size);
+        for (int i = 0; i < size; i++)
+        {
+            buckets.add(new ArrayList<Entry>(2));
+        }
+        for (Entry entry : entries)
+        {
+            buckets.get(PackFile.slot(PackFile.hash(entry.name, 0), size)).add(entry);
+        }
+        List<Integer> order = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+        {
+            order.add(Integer.valueOf(i));
+        }
+        Collections.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer bucket1, Integer bucket2)
+            {
+                return buckets.get(bucket2.intValue()).size()
+                    - buckets.get(bucket1.intValue()).size();
+            }
+        });
+
+        int nextFree = 0;
+        for (Integer bucketIndex : order)
+        {
+            List<Entry> bucket = buckets.get(bucketIndex.intValue());
+            if (bucket.isEmpty())
+            {
+                break;
+            }
+
+            if (bucket.size() == 1)
+            {
+                while (slots[nextFree] != null)
+                {
+                    nextFree++;
+                }
+                slots[nextFree] = bucket.get(0);
+                displacements[bucketIndex.intValue()] = -nextFree - 1;
+                continue;
+            }
+
+            int[] placed = new int[bucket.size()];
+            int seed = 1;
+            while (!place(bucket, seed, slots, placed))
+            {
+                if (++seed == MAX_SEED)
+                {
+                    throw new IOException("Unable to build the path index");
+                }
+            }
+            for (int i = 0; i < placed.length; i++)
+            {
+                slots[placed[i]] = bucket.get(i);
+            }
+            displacements[bucketIndex.intValue()] = seed;
+        }
+
+        for (int displacement : displacements)
+        {
+            output.writeInt(displacement);
+        }
+        int nameOffset = 0;
+        for (Entry entry : slots)
+        {
+            output.writeLong(entry.offset);
+            output.writeInt(entry.length);
+            output.writeInt(nameOffset);
+            output.writeInt(entry.name.length
+                | (entry.directory ? PackFileSystem.DIRECTORY_FLAG : 0));
+            nameOffset += entry.name.length;
+        }
+        for (Entry entry : slots)
+        {
+            output.write(entry.name);
+        }
+        position += size * (4 + PackFileSystem.RECORD_SIZE) + nameOffset;
+    }
+
+    private static boolean place(List<Entry> bucket, int seed, Entry[] slots, int[] placed)
+    {
+        for (int i = 0; i < placed.length; i++)
+        {
+            int slot = PackFile.slot(PackFile.hash(bucket.get(i).name, seed), slots.length);
+            if (slots[slot] != null)
+            {
+                return false;
+            }
+            for (int j = 0; j < i; j++)
+            {
+                if (placed[j] == slot)
+                {
+                    return false;
+                }
+            }
+            placed[i] = slot;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the module table and moves the finished archive into place.
+     *
+     * @throws IOException
+     *             if the archive cannot be written
+     */
+    public void close() throws IOException
+    {
+        boolean success = false;
+        try
+        {
+            output.writeInt(moduleCount);
+            tableOutput.close();
+            table.writeTo(output);
+            output.writeLong(position);
+            output.close();
+            if (position + 4 + table.size() + 8 > Integer.MAX_VALUE)
+            {
+                throw new IOException("Pack file too large to be mapped: " + file);
+            }
+            FileUtil.replace(tempFile, file);
+            success = true;
+        }
+        finally
+        {
+            if (!success)
+            {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Discards a partially written archive.
+     */
+    public void abort()
+    {
+        try
+        {
+            output.close();
+        }
+        catch (IOException e)
+        {
+            // do nothing
+        }
+        tempFile.delete();
+    }
+}
@@ -17,6 +17,7 @@
 package com.netbeetle.reboot.core;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -92,7 +93,44 @@ public class Reboot
 
         configLoader.rewriteURIs(config);
 
-        ApplicationContext applicationContext = new ApplicationContext(config);
+        LockFile lockFile = null;
+        if (!"false".equals(System.getProperty("com.netbeetle.reboot.lock")))
+        {
+            lockFile = new LockFile(new File(applicationDir, "reboot.lock"));
+            lockFile.load();
+        }
+
+        PackFile packFile = null;
+        File packFileLocation = new File(applicationDir, "reboot.pack");
+        if (!"false".equals(System.getProperty("com.netbeetle.reboot.pack"))
+            && packFileLocation.isFile())
+        {
+            try
+            {
+                packFile = PackFile.open(packFileLocation);
+                info("Using " + packFile.size() + " packed modules from " + packFileLocation);
+            }
+            catch (IOException e)
+            {
+                info("Ignoring " + packFileLocation + ", run the pack action to update it: "
+                    + e.getMessage());
+            }
+        }
+
+        final ApplicationContext applicationContext =
+            new ApplicationContext(config, lockFile, packFile);
+
+        if (applicationContext.isLazy())
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    info(applicationContext.getActivationReport());
+                }
+            });
+        }
 
         Arguments arguments = new Arguments(args);
 
@@ -112,7 +150,7 @@ public class Reboot
         System.out.println(DATE_FORMAT.format(new Date()) + ": " + message);
     }
 
-    public static File getCacheLocation(String uri)
+    public static File getCacheDirectory()
     {
         String cacheString = System.getProperty("com.netbeetle.reboot.cache");
         if (cacheString == null)
@@ -120,7 +158,12 @@ public class Reboot
             cacheString = System.getProperty("user.home") + "/.reboot/cache";
         }
 
-        File cacheDir = new File(cacheString);
+        return new File(cacheString);
+    }
+
+    public static File getCacheLocation(String uri)
+    {
+        File cacheDir = getCacheDirectory();
 
         StringBuilder builder = new StringBuilder(uri.length());
         for (int i = 0; i < uri.length(); i++)
@@ -16,22 +16,47 @@
 
 package com.netbeetle.reboot.core;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class RebootClassLoader extends ClassLoader
 {
     private static final Map<String, RebootClassLoader> REGISTERED_CLASSLOADERS =
         new ConcurrentHashMap<String, RebootClassLoader>();
+    private static final String META_INF = "META-INF/";
+    private static final String RESOURCE_INDEX = "resource-index/pinned/";
+    private static final String PACKAGE_INDEX = "package-index/pinned/";
+
+    // the indexes of a module are determined by the fingerprint of its file
+    // system, so modules that share a file system share its indexes
+    private static final Map<String, Set<String>> META_INF_ENTRIES =
+        new ConcurrentHashMap<String, Set<String>>();
+    private static final Map<String, ClassIndex> CLASS_INDEXES =
+        new ConcurrentHashMap<String, ClassIndex>();
 
     public static RebootClassLoader getClassLoader(String moduleName)
     {
@@ -41,6 +66,10 @@ public class RebootClassLoader extends ClassLoader
     private final String moduleName;
     private final RebootFileSystem fileSystem;
     private final Set<RebootClassLoader> dependencies;
+    private volatile Set<String> metaInfEntries;
+    private volatile ClassIndex classIndex;
+    private volatile Set<String> packages;
+    private volatile boolean packagesSaved;
 
     public RebootClassLoader(RebootClassLoaderContext context)
     {
@@ -108,6 +137,19 @@ public class RebootClassLoader extends ClassLoader
     @Override
     protected URL findResource(String name)
     {
+        if (name.startsWith(META_INF))
+        {
+            try
+            {
+                List<URL> urls = findMetaInfResources(name, true);
+                return urls.isEmpty() ? null : urls.get(0);
+            }
+            catch (IOException e)
+            {
+                // fall back to searching each file system
+            }
+        }
+
         for (RebootClassLoader dependency : dependencies)
         {
             try
@@ -142,6 +184,18 @@ public class RebootClassLoader extends ClassLoader
     @Override
     protected Enumeration<URL> findResources(String name) throws IOException
     {
+        if (name.startsWith(META_INF))
+        {
+            try
+            {
+                return Collections.enumeration(findMetaInfResources(name, false));
+            }
+            catch (IOException e)
+            {
+                // fall back to searching each file system
+            }
+        }
+
         Collection<URL> urls = new LinkedList<URL>();
         for (RebootClassLoader dependency : dependencies)
         {
@@ -176,6 +230,453 @@ public class RebootClassLoader extends ClassLoader
         return Collections.enumeration(urls);
     }
 
+    /**
+     * Finds a META-INF resource in each module visible to this class loader,
+     * in search order. Modules whose META-INF entries are known are checked
+     * against them, and in lazy mode any other module is only activated when
+     * the search reaches it.
+     *
+     * @param first
+     *            true to stop at the first module that provides the resource
+     */
+    private List<URL> findMetaInfResources(String name, boolean first) throws IOException
+    {
+        List<RebootClassLoader> classLoaders =
+            new ArrayList<RebootClassLoader>(dependencies.size() + 1);
+        classLoaders.addAll(dependencies);
+        classLoaders.add(this);
+
+        List<URL> urls = new ArrayList<URL>(1);
+        for (RebootClassLoader classLoader : classLoaders)
+        {
+            String entry = classLoader.findMetaInfEntry(name);
+            if (entry != null)
+            {
+                urls.add(new URL("rbt:/" + classLoader.getModuleName() + '/' + entry));
+                if (first)
+                {
+                    break;
+                }
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @return the name of a META-INF resource in this module alone, which for
+     *         a directory ends in a slash, or null if the module doesn't have
+     *         it
+     */
+    private String findMetaInfEntry(String name) throws IOException
+    {
+        Set<String> entries = findMetaInfEntries();
+        if (entries == null)
+        {
+            // only the one resource is looked up, though that still activates
+            // this module
+            RebootFile resource = findRebootFile(name);
+            return resource == null ? null : resource.getName();
+        }
+
+        // directories are indexed with a trailing slash
+        if (entries.contains(name))
+        {
+            return name;
+        }
+        if (!name.endsWith("/") && entries.contains(name + '/'))
+        {
+            return name + '/';
+        }
+        return null;
+    }
+
+    /**
+     * Lists the META-INF resources of this module if that doesn't require
+     * activating it in lazy mode. A module that hasn't been activated is only
+     * listed if its URIs are pinned and the list for those pins was cached by
+     * an earlier launch.
+     *
+     * @return the entries, or null if the module would have to be activated
+     */
+    private Set<String> findMetaInfEntries() throws IOException
+    {
+        if (metaInfEntries != null || !(fileSystem instanceof LazyFileSystem)
+            || ((LazyFileSystem) fileSystem).isActivated())
+        {
+            return getMetaInfEntries();
+        }
+
+        File cacheFile = getPinnedCacheFile(RESOURCE_INDEX);
+        Set<String> entries = cacheFile == null ? null : readEntries(cacheFile);
+        if (entries != null)
+        {
+            entries = Collections.unmodifiableSet(entries);
+            metaInfEntries = entries;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the file in the given index directory caching an index of a
+     *         lazily activated module by its pinned URIs, or null if they
+     *         aren't all pinned
+     */
+    private File getPinnedCacheFile(String directory) throws IOException
+    {
+        if (!(fileSystem instanceof LazyFileSystem))
+        {
+            return null;
+        }
+        String pinnedURIs = ((LazyFileSystem) fileSystem).getPinnedURIs();
+        if (pinnedURIs == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new File(Reboot.getCacheDirectory(), directory
+                + HashUtil.hash(moduleName + '\n' + pinnedURIs));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Unable to compute hash", e);
+        }
+    }
+
+    /**
+     * Lists the META-INF resources provided by this module alone. The list is
+     * cached by the fingerprint of the module's file system, so modules that
+     * can be fingerprinted are only listed once, and modules with the same
+     * contents share one list.
+     *
+     * @return the names of all files and directories inside META-INF, with
+     *         directory names ending in a slash
+     * @throws IOException
+     *             if the module cannot be listed
+     */
+    public Set<String> getMetaInfEntries() throws IOException
+    {
+        Set<String> entries = metaInfEntries;
+        if (entries != null)
+        {
+            return entries;
+        }
+
+        String fingerprint = fileSystem.fingerprint();
+        File cacheFile = null;
+        if (fingerprint != null)
+        {
+            entries = META_INF_ENTRIES.get(fingerprint);
+            if (entries != null)
+            {
+                savePinnedEntries(entries);
+                metaInfEntries = entries;
+                return entries;
+            }
+
+            cacheFile = new File(Reboot.getCacheDirectory(), "resource-index/" + fingerprint);
+            entries = readEntries(cacheFile);
+        }
+
+        if (entries == null)
+        {
+            entries = new HashSet<String>();
+            RebootFile metaInf = findRebootFile(META_INF);
+            if (metaInf != null && metaInf.isDirectory())
+            {
+                entries.add(metaInf.getName());
+                for (RebootFile file : metaInf.list(true))
+                {
+                    entries.add(file.getName());
+                }
+            }
+
+            if (cacheFile != null)
+            {
+                writeEntries(cacheFile, entries);
+            }
+        }
+
+        entries = Collections.unmodifiableSet(entries);
+        if (fingerprint != null)
+        {
+            META_INF_ENTRIES.put(fingerprint, entries);
+        }
+        savePinnedEntries(entries);
+        metaInfEntries = entries;
+        return entries;
+    }
+
+    /**
+     * Caches the META-INF entries of a lazily activated module by its pinned
+     * URIs, so later launches can search it without activating it.
+     */
+    private void savePinnedEntries(Set<String> entries) throws IOException
+    {
+        File pinnedCacheFile = getPinnedCacheFile(RESOURCE_INDEX);
+        if (pinnedCacheFile != null && !pinnedCacheFile.isFile())
+        {
+            writeEntries(pinnedCacheFile, entries);
+        }
+    }
+
+    /**
+     * Checks whether this module might provide a class file. In lazy mode a
+     * module that hasn't been activated is ruled out without activating it if
+     * the packages for its pinned URIs were cached by an earlier launch and
+     * don't include the class's package.
+     *
+     * @return false if the module is known not to have the class file
+     */
+    private boolean mayHaveClass(String filename) throws IOException
+    {
+        int slash = filename.lastIndexOf('/');
+        if (slash < 0 || !(fileSystem instanceof LazyFileSystem)
+            || ((LazyFileSystem) fileSystem).isActivated())
+        {
+            return true;
+        }
+
+        Set<String> known = packages;
+        if (known == null)
+        {
+            File cacheFile = getPinnedCacheFile(PACKAGE_INDEX);
+            known = cacheFile == null ? null : readEntries(cacheFile);
+            if (known == null)
+            {
+                return true;
+            }
+            known = Collections.unmodifiableSet(known);
+            packages = known;
+        }
+        return known.contains(filename.substring(0, slash + 1));
+    }
+
+    /**
+     * Caches the packages of a lazily activated module by its pinned URIs
+     * once it has been activated, so later launches can rule it out when
+     * searching for classes. Each package is stored as its directory name
+     * ending in a slash.
+     */
+    private void savePinnedPackages()
+    {
+        if (packagesSaved || !(fileSystem instanceof LazyFileSystem)
+            || !((LazyFileSystem) fileSystem).isActivated())
+        {
+            return;
+        }
+        packagesSaved = true;
+
+        File cacheFile = null;
+        try
+        {
+            cacheFile = getPinnedCacheFile(PACKAGE_INDEX);
+            if (cacheFile == null || cacheFile.isFile())
+            {
+                return;
+            }
+
+            Set<String> directories = new HashSet<String>();
+            RebootFile root = findRebootFile("");
+            if (root != null)
+            {
+                for (RebootFile file : root.list(true))
+                {
+                    String name = file.getName();
+                    int slash = name.lastIndexOf('/');
+                    if (slash > 0 && !file.isDirectory() && name.endsWith(".class"))
+                    {
+                        directories.add(name.substring(0, slash + 1));
+                    }
+                }
+            }
+            writeEntries(cacheFile, directories);
+        }
+        catch (IOException e)
+        {
+            // the module is simply searched again by the next launch
+            Reboot.info("Unable to save package index " + cacheFile + ": " + e);
+        }
+    }
+
+    private static Set<String> readEntries(File file)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        Set<String> entries = new HashSet<String>();
+        try
+        {
+            BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                String line = reader.readLine();
+                while (line != null)
+                {
+                    if (!line.isEmpty())
+                    {
+                        entries.add(line);
+                    }
+                    line = reader.readLine();
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged index is simply rebuilt
+            return null;
+        }
+        return entries;
+    }
+
+    private static void writeEntries(File file, Set<String> entries)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (String entry : entries)
+            {
+                bytes.write(entry.getBytes("UTF-8"));
+                bytes.write('\n');
+            }
+            FileUtil.write(file, bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            Reboot.info("Unable to save resource index " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Gets an index of the classes provided by this module alone. The index
+     * is cached by the fingerprint of the module's file system, so modules
+     * that can be fingerprinted are only scanned once.
+     *
+     * @return the index of classes in this module
+     * @throws IOException
+     *             if the module cannot be scanned
+     */
+    public ClassIndex getClassIndex() throws IOException
+    {
+        ClassIndex index = classIndex;
+        if (index != null)
+        {
+            return index;
+        }
+
+        String fingerprint = fileSystem.fingerprint();
+        File cacheFile = null;
+        if (fingerprint != null)
+        {
+            index = CLASS_INDEXES.get(fingerprint);
+            if (index != null)
+            {
+                classIndex = index;
+                return index;
+            }
+
+            cacheFile = new File(Reboot.getCacheDirectory(), "class-index/" + fingerprint);
+            index = ClassIndex.read(cacheFile);
+        }
+
+        if (index == null)
+        {
+            long start = System.currentTimeMillis();
+            RebootFile root = findRebootFile("");
+            index = ClassIndex.build(root);
+            Reboot.info("Indexed " + index.getClasses().size() + " classes in " + moduleName
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+
+            if (cacheFile != null)
+            {
+                try
+                {
+                    index.write(cacheFile);
+                }
+                catch (IOException e)
+                {
+                    Reboot.info("Unable to save class index " + cacheFile + ": " + e);
+                }
+            }
+        }
+
+        if (fingerprint != null)
+        {
+            CLASS_INDEXES.put(fingerprint, index);
+        }
+        classIndex = index;
+        return index;
+    }
+
+    /**
+     * Gets the class indexes of every module visible to this class loader.
+     * Modules that haven't been indexed yet are scanned in parallel.
+     *
+     * @return the index of each module keyed by module name, in search order
+     * @throws IOException
+     *             if any module cannot be scanned
+     */
+    public Map<String, ClassIndex> getClassIndexes() throws IOException
+    {
+        List<RebootClassLoader> classLoaders =
+            new ArrayList<RebootClassLoader>(dependencies.size() + 1);
+        classLoaders.addAll(dependencies);
+        classLoaders.add(this);
+
+        ExecutorService executor =
+            Executors.newFixedThreadPool(
+                Math.min(classLoaders.size(), Runtime.getRuntime().availableProcessors()),
+                new RebootThreadFactory("reboot-scanner"));
+        try
+        {
+            List<Future<ClassIndex>> futures =
+                new ArrayList<Future<ClassIndex>>(classLoaders.size());
+            for (final RebootClassLoader classLoader : classLoaders)
+            {
+                futures.add(executor.submit(new Callable<ClassIndex>()
+                {
+                    @Override
+                    public ClassIndex call() throws IOException
+                    {
+                        return classLoader.getClassIndex();
+                    }
+                }));
+            }
+
+            Map<String, ClassIndex> indexes = new LinkedHashMap<String, ClassIndex>();
+            for (int i = 0; i < classLoaders.size(); i++)
+            {
+                indexes.put(classLoaders.get(i).getModuleName(), futures.get(i).get());
+            }
+            return indexes;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing classes", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to index classes", e.getCause());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
     protected Class<?> findRebootClass(String name) throws ClassNotFoundException
     {
         Class<?> loadedClass = findLoadedClass(name);
@@ -187,13 +688,19 @@ public class RebootClassLoader extends ClassLoader
         try
         {
             String filename = name.replace('.', '/') + ".class";
-            RebootFile file = findRebootFile(filename);
+            RebootFile file = mayHaveClass(filename) ? findRebootFile(filename) : null;
+            savePinnedPackages();
             if (file == null)
             {
                 throw new ClassNotFoundException(name + " (in " + moduleName + ")");
             }
             byte[] bytes = file.getBytes();
-            return defineClass(name, bytes, 0, bytes.length);
+            Class<?> definedClass = defineClass(name, bytes, 0, bytes.length);
+            if (LoadOrder.isRecording())
+            {
+                LoadOrder.record(this, filename);
+            }
+            return definedClass;
         }
         catch (IOException e)
         {
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so background work never prevents the JVM
+ * from exiting once the application is finished.
+ */
+public class RebootThreadFactory implements ThreadFactory
+{
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    public RebootThreadFactory(String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+        Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -110,10 +110,32 @@ public class StandardFileSystem implements RebootFileSystem
     }
 
     private final File base;
+    private final String fingerprint;
 
     public StandardFileSystem(File base)
+    {
+        this(base, null);
+    }
+
+    /**
+     * @param base
+     *            the root directory
+     * @param fingerprint
+     *            the fingerprint of the directory, which must only be given
+     *            if the contents of the directory never change
+     */
+    public StandardFileSystem(File base, String fingerprint)
     {
         this.base = base;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the root directory
+     */
+    public File getLocation()
+    {
+        return base;
     }
 
     @Override
@@ -142,6 +164,6 @@ public class StandardFileSystem implements RebootFileSystem
     @Override
     public String fingerprint() throws IOException
     {
-        return null;
+        return fingerprint;
     }
 }
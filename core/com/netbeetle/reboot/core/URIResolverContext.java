@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+/**
+ * Passed to URI resolvers that declare a constructor taking a single
+ * URIResolverContext. Resolvers with a no argument constructor are still
+ * supported.
+ */
+public class URIResolverContext
+{
+    private final URISettings settings;
+    private final LockFile lockFile;
+
+    public URIResolverContext(URISettings settings, LockFile lockFile)
+    {
+        this.settings = settings;
+        this.lockFile = lockFile;
+    }
+
+    public URISettings getSettings()
+    {
+        return settings;
+    }
+
+    /**
+     * @return the pins for the application, or null if URIs are not pinned
+     */
+    public LockFile getLockFile()
+    {
+        return lockFile;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies an ordered list of {@link URIRewriteRule}s to URIs. Rules are
+ * indexed by their literal prefixes in a trie so only rules that could
+ * possibly match a value are tested, and the final result of rewriting each
+ * value is memoized. The memoized results can be saved to and loaded from the
+ * cache, keyed by a hash of the rules, so later launches with the same rules
+ * don't need to evaluate any patterns.
+ */
+public class URIRewriteEngine
+{
+    private static final int MAX_REWRITES = 100;
+
+    private static class Node
+    {
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private final List<Integer> rules = new ArrayList<Integer>();
+    }
+
+    private final List<URIRewriteRule> rules;
+    private final Node root = new Node();
+    private final Map<String, String> results = new ConcurrentHashMap<String, String>();
+    private final String rulesHash;
+    private volatile boolean modified = false;
+
+    public URIRewriteEngine(List<URIRewriteRule> rules) throws RebootException
+    {
+        this.rules = new ArrayList<URIRewriteRule>(rules);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < this.rules.size(); i++)
+        {
+            URIRewriteRule rule = this.rules.get(i);
+            builder.append(rule.getPattern()).append('\n');
+            builder.append(rule.getReplacement()).append('\n');
+
+            Node node = root;
+            String prefix = rule.getPrefix();
+            for (int j = 0; j < prefix.length(); j++)
+            {
+                Character c = Character.valueOf(prefix.charAt(j));
+                Node child = node.children.get(c);
+                if (child == null)
+                {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.rules.add(Integer.valueOf(i));
+        }
+
+        try
+        {
+            rulesHash = HashUtil.hash(builder.toString());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RebootException("Unable to compute hash", e);
+        }
+    }
+
+    /**
+     * Repeatedly applies the first matching rule to a value until no rules
+     * match.
+     *
+     * @param value
+     *            the value to rewrite
+     * @return the rewritten value, which is the original value if no rules
+     *         matched
+     * @throws RebootException
+     *             if the value is still being rewritten after many passes
+     */
+    public String rewrite(String value) throws RebootException
+    {
+        String result = results.get(value);
+        if (result != null)
+        {
+            return result;
+        }
+
+        result = value;
+        for (int i = 0; i < MAX_REWRITES; i++)
+        {
+            String newValue = rewriteOnce(result);
+            if (newValue == null)
+            {
+                results.put(value, result);
+                modified = true;
+                return result;
+            }
+            result = newValue;
+        }
+        throw new RebootException("URI rewrite loop exceded limit when processing " + value);
+    }
+
+    private String rewriteOnce(String value)
+    {
+        // collect every rule with a prefix of the value, then test them in
+        // their original order so the first matching rule still wins
+        BitSet candidates = new BitSet(rules.size());
+        Node node = root;
+        int index = 0;
+        while (node != null)
+        {
+            for (Integer rule : node.rules)
+            {
+                candidates.set(rule.intValue());
+            }
+            if (index == value.length())
+            {
+                break;
+            }
+            node = node.children.get(Character.valueOf(value.charAt(index++)));
+        }
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+        {
+            String newValue = rules.get(i).rewrite(value);
+            if (newValue != null)
+            {
+                return newValue;
+            }
+        }
+        return null;
+    }
+
+    public File getCacheFile()
+    {
+        return new File(Reboot.getCacheDirectory(), "rewrites/" + rulesHash);
+    }
+
+    public void load()
+    {
+        File file = getCacheFile();
+        if (!file.isFile())
+        {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try
+        {
+            InputStream inputStream = new FileInputStream(file);
+            try
+            {
+                properties.load(inputStream);
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged cache is simply rebuilt
+            return;
+        }
+
+        for (String key : properties.stringPropertyNames())
+        {
+            results.put(key, properties.getProperty(key));
+        }
+    }
+
+    public void save() throws IOException
+    {
+        if (!modified)
+        {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(results);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        properties.store(bytes, null);
+        FileUtil.write(getCacheFile(), bytes.toByteArray());
+        modified = false;
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.netbeetle.reboot.core;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,11 +30,21 @@ public class URIRewriteRule
     private static final Pattern REPLACEMENT_VARIABLE = Pattern
         .compile("\\{([A-Za-z0-9-_]+)\\}");
 
-    private final Pattern pattern;
+    private final String pattern;
     private final String replacement;
+    private final String prefix;
+    private final Pattern compiledPattern;
+
+    // the replacement is split into literal segments with a group reference
+    // between each pair of segments, so rewriting only needs to concatenate
+    private final String[] replacementSegments;
+    private final int[] replacementGroups;
 
     public URIRewriteRule(String pattern, String replacement)
     {
+        this.pattern = pattern;
+        this.replacement = replacement;
+
         Matcher patternMatcher = PATTERN_VARIABLE.matcher(pattern);
         StringBuilder rawPattern = new StringBuilder("^");
         Map<String, Integer> patternIndexes = new HashMap<String, Integer>();
@@ -61,15 +73,26 @@ public class URIRewriteRule
             rawPattern.append("(.*)");
         }
         rawPattern.append('$');
-        this.pattern = Pattern.compile(rawPattern.toString());
+        this.compiledPattern = Pattern.compile(rawPattern.toString());
+
+        patternMatcher.reset();
+        if (patternMatcher.find())
+        {
+            this.prefix = pattern.substring(0, patternMatcher.start());
+        }
+        else
+        {
+            this.prefix = pattern;
+        }
 
         Matcher variableMatcher = REPLACEMENT_VARIABLE.matcher(replacement);
-        StringBuilder rawReplacement = new StringBuilder();
+        List<String> segments = new ArrayList<String>();
+        List<Integer> groups = new ArrayList<Integer>();
+        StringBuilder segment = new StringBuilder();
         index = 0;
         while (variableMatcher.find())
         {
-            rawReplacement.append(Matcher.quoteReplacement(replacement.substring(index,
-                variableMatcher.start())));
+            segment.append(replacement, index, variableMatcher.start());
 
             index = variableMatcher.end();
 
@@ -77,30 +100,74 @@ public class URIRewriteRule
 
             if (patternIndex == null)
             {
-                rawReplacement.append(Matcher.quoteReplacement(variableMatcher.group()));
+                segment.append(variableMatcher.group());
             }
             else
             {
-                rawReplacement.append('$');
-                rawReplacement.append(patternIndex);
+                segments.add(segment.toString());
+                groups.add(patternIndex);
+                segment.setLength(0);
             }
         }
-        rawReplacement.append(Matcher.quoteReplacement(replacement.substring(index)));
+        segment.append(replacement.substring(index));
+        segments.add(segment.toString());
         if (patternIndexes.isEmpty())
         {
-            rawReplacement.append("$1");
+            groups.add(Integer.valueOf(1));
+            segments.add("");
+        }
+
+        this.replacementSegments = segments.toArray(new String[segments.size()]);
+        this.replacementGroups = new int[groups.size()];
+        for (int i = 0; i < replacementGroups.length; i++)
+        {
+            replacementGroups[i] = groups.get(i).intValue();
         }
-        this.replacement = rawReplacement.toString();
+    }
+
+    public String getPattern()
+    {
+        return pattern;
+    }
+
+    public String getReplacement()
+    {
+        return replacement;
+    }
+
+    /**
+     * Gets the literal text that every value matched by this rule must start
+     * with. The prefix may be empty if the pattern starts with a variable.
+     * 
+     * @return the literal prefix of the pattern
+     */
+    public String getPrefix()
+    {
+        return prefix;
     }
 
     public String rewrite(String value)
     {
-        Matcher matcher = pattern.matcher(value);
+        if (!value.startsWith(prefix))
+        {
+            return null;
+        }
+
+        Matcher matcher = compiledPattern.matcher(value);
         if (matcher.matches())
         {
-            StringBuffer buffer = new StringBuffer();
-            matcher.appendReplacement(buffer, replacement);
-            return buffer.toString();
+            StringBuilder builder = new StringBuilder(value.length() + 32);
+            builder.append(replacementSegments[0]);
+            for (int i = 0; i < replacementGroups.length; i++)
+            {
+                String group = matcher.group(replacementGroups[i]);
+                if (group != null)
+                {
+                    builder.append(group);
+                }
+                builder.append(replacementSegments[i + 1]);
+            }
+            return builder.toString();
         }
         return null;
     }
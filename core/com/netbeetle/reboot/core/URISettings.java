@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import com.netbeetle.reboot.core.config.URISettingConfig;
+
+/**
+ * Settings that apply to the URIs matching an expression, such as how long a
+ * resolver may use cached content. When several settings with the same name
+ * match a URI, the first one wins, so user settings override the settings
+ * that ship with Reboot.
+ */
+public class URISettings
+{
+    private final List<URISettingConfig> settings;
+
+    public URISettings(List<URISettingConfig> settings)
+    {
+        if (settings == null)
+        {
+            this.settings = Collections.emptyList();
+        }
+        else
+        {
+            this.settings = settings;
+        }
+    }
+
+    public String get(URI uri, String name)
+    {
+        String uriString = uri.toString();
+        for (URISettingConfig setting : settings)
+        {
+            if (setting.getName().equals(name)
+                && setting.getExpression().matcher(uriString).matches())
+            {
+                return setting.getValue();
+            }
+        }
+        return null;
+    }
+
+    public String get(URI uri, String name, String defaultValue)
+    {
+        String value = get(uri, name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        return value;
+    }
+
+    public long getLong(URI uri, String name, long defaultValue) throws RebootException
+    {
+        String value = get(uri, name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RebootException("Setting " + name + " for " + uri
+                + " is not a number: " + value);
+        }
+    }
+
+    public boolean getBoolean(URI uri, String name, boolean defaultValue)
+    {
+        String value = get(uri, name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -100,6 +100,7 @@ public class UnionFileSystem implements RebootFileSystem
     }
 
     private final List<RebootFileSystem> fileSystems;
+    private volatile String fingerprint;
 
     public UnionFileSystem(List<RebootFileSystem> fileSystems)
     {
@@ -140,6 +141,12 @@ public class UnionFileSystem implements RebootFileSystem
     @Override
     public String fingerprint() throws IOException
     {
+        String result = fingerprint;
+        if (result != null)
+        {
+            return result;
+        }
+
         StringBuilder builder = new StringBuilder();
         for (RebootFileSystem fileSystem : fileSystems)
         {
@@ -157,11 +164,14 @@ public class UnionFileSystem implements RebootFileSystem
 
         try
         {
-            return HashUtil.hash(builder.toString());
+            result = HashUtil.hash(builder.toString());
         }
         catch (NoSuchAlgorithmException e)
         {
             throw new IOException("Unable to compute hash", e);
         }
+
+        fingerprint = result;
+        return result;
     }
 }
@@ -30,6 +30,7 @@ import java.util.zip.ZipFile;
 public class ZipFileSystem implements RebootFileSystem
 {
     private final ZipFile zipFile;
+    private volatile String fingerprint;
 
     private class ZipDirectory extends RebootDirectory
     {
@@ -94,6 +95,14 @@ public class ZipFileSystem implements RebootFileSystem
         this.zipFile = zipFile;
     }
 
+    /**
+     * @return the zip file
+     */
+    public File getLocation()
+    {
+        return new File(zipFile.getName());
+    }
+
     @Override
     public RebootFile getFile(String name)
     {
@@ -148,13 +157,37 @@ public class ZipFileSystem implements RebootFileSystem
     @Override
     public String fingerprint() throws IOException
     {
+        String result = fingerprint;
+        if (result != null)
+        {
+            return result;
+        }
+
+        // hashing a large zip file is expensive, so remember the hash of each
+        // file keyed by its path, size and modification time
+        File file = new File(zipFile.getName()).getAbsoluteFile();
         try
         {
-            return HashUtil.hash(new File(zipFile.getName()));
+            File cacheFile =
+                new File(Reboot.getCacheDirectory(), "fingerprints/"
+                    + HashUtil.hash(file.getPath() + '\n' + file.length() + '\n'
+                        + file.lastModified()));
+            if (cacheFile.isFile() && cacheFile.length() == 40)
+            {
+                result = new String(FileUtil.read(cacheFile), "US-ASCII");
+            }
+            else
+            {
+                result = HashUtil.hash(file);
+                FileUtil.write(cacheFile, result.getBytes("US-ASCII"));
+            }
         }
         catch (NoSuchAlgorithmException e)
         {
             throw new IOException("Unable to compute hash", e);
         }
+
+        fingerprint = result;
+        return result;
     }
 }
@@ -45,7 +45,9 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import com.netbeetle.reboot.core.Reboot;
 import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.URIRewriteEngine;
 import com.netbeetle.reboot.core.URIRewriteRule;
 
 public class ConfigLoader
@@ -185,6 +187,7 @@ public class ConfigLoader
         Map<String, ClassLoaderConfig> mergedClassLoaders = map();
         Map<String, URIRewriteRuleConfig> mergedURIRewriteRules = map();
         Map<String, URIResolverConfig> mergedURIResolvers = map();
+        Map<String, URISettingConfig> mergedURISettings = map();
         Map<String, ModuleConfig> mergedModules = map();
         EntryPointConfig entryPoint = null;
 
@@ -223,6 +226,15 @@ public class ConfigLoader
                 }
             }
 
+            for (URISettingConfig uriSetting : nullSafeList(config.getUriSettings()))
+            {
+                String key = uriSetting.getName() + ' ' + uriSetting.getExpression().pattern();
+                if (!mergedURISettings.containsKey(key))
+                {
+                    mergedURISettings.put(key, uriSetting);
+                }
+            }
+
             for (ModuleConfig module : nullSafeList(config.getModules()))
             {
                 if (!mergedModules.containsKey(module.getId()))
@@ -243,6 +255,7 @@ public class ConfigLoader
         merged.setModules(list(mergedModules));
         merged.setUriRewriteRules(list(mergedURIRewriteRules));
         merged.setUriResolvers(list(mergedURIResolvers));
+        merged.setUriSettings(list(mergedURISettings));
         merged.setEntryPoint(entryPoint);
 
         return merged;
@@ -257,14 +270,26 @@ public class ConfigLoader
                 .getReplacement()));
         }
 
+        URIRewriteEngine rewriteEngine = new URIRewriteEngine(rewriteRules);
+        rewriteEngine.load();
+
         for (ModuleConfig module : nullSafeList(config.getModules()))
         {
-            module.setUris(rewriteURIs(rewriteRules, module.getUris()));
-            module.setSrcUris(rewriteURIs(rewriteRules, module.getSrcUris()));
+            module.setUris(rewriteURIs(rewriteEngine, module.getUris()));
+            module.setSrcUris(rewriteURIs(rewriteEngine, module.getSrcUris()));
+        }
+
+        try
+        {
+            rewriteEngine.save();
+        }
+        catch (IOException e)
+        {
+            Reboot.info("Unable to save rewritten URIs: " + e);
         }
     }
 
-    private List<URI> rewriteURIs(List<URIRewriteRule> rewriteRules, List<URI> uris)
+    private List<URI> rewriteURIs(URIRewriteEngine rewriteEngine, List<URI> uris)
         throws RebootException
     {
         List<URI> rewrittenURIs = null;
@@ -273,46 +298,23 @@ public class ConfigLoader
             rewrittenURIs = new ArrayList<URI>(uris.size());
             for (URI uri : uris)
             {
-                rewrittenURIs.add(rewriteURI(rewriteRules, uri));
+                rewrittenURIs.add(rewriteURI(rewriteEngine, uri));
             }
         }
         return rewrittenURIs;
     }
 
-    private URI rewriteURI(List<URIRewriteRule> rewriteRules, URI uri) throws RebootException
+    private URI rewriteURI(URIRewriteEngine rewriteEngine, URI uri) throws RebootException
     {
-        String value = uri.toString();
-        for (int i = 0; i < 100; i++)
+        String value = rewriteEngine.rewrite(uri.toString());
+        try
         {
-            String newValue = rewriteURIOnce(rewriteRules, value);
-            if (newValue == null)
-            {
-                try
-                {
-                    return new URI(value);
-                }
-                catch (URISyntaxException e)
-                {
-                    throw new RebootException("URI rewritten to invalid value: " + uri + " to "
-                        + value);
-                }
-            }
-            value = newValue;
+            return new URI(value);
         }
-        throw new RebootException("URI rewrite loop exceded limit when processing " + uri);
-    }
-
-    private String rewriteURIOnce(List<URIRewriteRule> rewriteRules, String value)
-    {
-        for (URIRewriteRule rule : rewriteRules)
+        catch (URISyntaxException e)
         {
-            String newValue = rule.rewrite(value);
-            if (newValue != null)
-            {
-                return newValue;
-            }
+            throw new RebootException("URI rewritten to invalid value: " + uri + " to " + value);
         }
-        return null;
     }
 
     private <T> List<T> nullSafeList(List<T> list)
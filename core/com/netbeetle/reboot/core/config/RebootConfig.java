@@ -28,6 +28,7 @@ public class RebootConfig
     private EntryPointConfig entryPoint;
     private List<URIRewriteRuleConfig> uriRewriteRules;
     private List<URIResolverConfig> uriResolvers;
+    private List<URISettingConfig> uriSettings;
     private List<ClassLoaderConfig> classLoaders;
     private List<ActionConfig> actions;
     private List<ModuleConfig> modules;
@@ -66,6 +67,18 @@ public class RebootConfig
         this.uriResolvers = uriResolvers;
     }
 
+    @XmlElementWrapper
+    @XmlElement(name = "uriSetting")
+    public List<URISettingConfig> getUriSettings()
+    {
+        return uriSettings;
+    }
+
+    public void setUriSettings(List<URISettingConfig> uriSettings)
+    {
+        this.uriSettings = uriSettings;
+    }
+
     @XmlElementWrapper
     @XmlElement(name = "classLoader")
     public List<ClassLoaderConfig> getClassLoaders()
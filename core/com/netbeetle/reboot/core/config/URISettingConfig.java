@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.core.config;
+
+import java.util.regex.Pattern;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+public class URISettingConfig
+{
+    private Pattern expression;
+    private String name;
+    private String value;
+
+    public Pattern getExpression()
+    {
+        return expression;
+    }
+
+    @XmlJavaTypeAdapter(PatternXmlAdapter.class)
+    public void setExpression(Pattern expression)
+    {
+        this.expression = expression;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public void setValue(String value)
+    {
+        this.value = value;
+    }
+}
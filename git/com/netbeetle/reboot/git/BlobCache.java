@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.git;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A least recently used cache of inflated blobs, bounded by the total number
+ * of bytes held. Blobs are identified by their content, so the cache is shared
+ * by every repository.
+ */
+public class BlobCache
+{
+    private static final long MAX_BYTES = Long.getLong(
+        "com.netbeetle.reboot.git.blobCacheSize", 32 * 1024 * 1024).longValue();
+
+    private static final BlobCache INSTANCE = new BlobCache(MAX_BYTES);
+
+    private final long maxBytes;
+    private final LinkedHashMap<ObjectId, byte[]> blobs =
+        new LinkedHashMap<ObjectId, byte[]>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public BlobCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public static BlobCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return true if a blob of the given size is small enough to be cached
+     */
+    public boolean accepts(long size)
+    {
+        // a single blob may not take more than an eighth of the cache
+        return size <= maxBytes / 8;
+    }
+
+    /**
+     * @return the contents of the blob, which must not be modified, or null if
+     *         the blob is not cached
+     */
+    public synchronized byte[] get(ObjectId blobId)
+    {
+        return blobs.get(blobId);
+    }
+
+    public synchronized void put(ObjectId blobId, byte[] bytes)
+    {
+        if (!accepts(bytes.length))
+        {
+            return;
+        }
+
+        byte[] previous = blobs.put(blobId, bytes);
+        if (previous != null)
+        {
+            totalBytes -= previous.length;
+        }
+        totalBytes += bytes.length;
+
+        Iterator<Map.Entry<ObjectId, byte[]>> iterator = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext())
+        {
+            totalBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+}
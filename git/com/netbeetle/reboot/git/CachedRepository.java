@@ -16,18 +16,31 @@
 
 package com.netbeetle.reboot.git;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
@@ -37,16 +50,34 @@ import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
 import org.eclipse.jgit.transport.URIish;
-import org.eclipse.jgit.treewalk.TreeWalk;
+
+import com.netbeetle.reboot.core.FileUtil;
+import com.netbeetle.reboot.core.Reboot;
 
 public class CachedRepository
 {
+    // the order in which jgit searches for a ref by its short name
+    private static final String[] REF_SEARCH_PATH = {"", Constants.R_REFS,
+        Constants.R_TAGS, Constants.R_HEADS, Constants.R_REMOTES};
+
+    private static final int MAX_IDLE_READERS = 4;
+
     private final String uri;
     private final Repository repository;
     private final ConcurrentNavigableMap<String, GitRevision> revisions =
         new ConcurrentSkipListMap<String, GitRevision>();
-    private boolean hasFetched = false;
+    // idle object readers, reused across reads but bounded so threads that
+    // stop reading don't each keep a reader for the rest of their lives
+    private final BlockingQueue<ObjectReader> readers = new ArrayBlockingQueue<ObjectReader>(
+        MAX_IDLE_READERS);
+    private final Set<String> fetchedRefs = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean hasFetched = false;
+    private volatile Map<String, Ref> remoteRefs;
+    private final long openTime = System.currentTimeMillis();
+    private final Object fetchLock = new Object();
 
     public CachedRepository(String uri, Repository repository)
     {
@@ -54,6 +85,25 @@ public class CachedRepository
         this.repository = repository;
     }
 
+    /**
+     * @return the time this process started using the repository, before it
+     *         looked up any revisions
+     */
+    public long getOpenTime()
+    {
+        return openTime;
+    }
+
+    /**
+     * @return the object to synchronize on while fetching, which is separate
+     *         from the repository itself so a slow fetch never blocks
+     *         resolving revisions that are already available
+     */
+    public Object getFetchLock()
+    {
+        return fetchLock;
+    }
+
     public String getUri()
     {
         return uri;
@@ -87,16 +137,144 @@ public class CachedRepository
         config.save();
     }
 
-    public boolean hasFetched()
+    /**
+     * @param refName
+     *            a ref name, or null to check for a fetch of every ref
+     * @return true if the ref has been fetched by this process
+     */
+    public boolean hasFetched(String refName)
+    {
+        return hasFetched || (refName != null && fetchedRefs.contains(refName));
+    }
+
+    /**
+     * @param refName
+     *            a ref name, or null to ignore fetches of single refs
+     * @return the time of the last successful fetch of the ref in
+     *         milliseconds, or 0 if the ref has never been fetched
+     */
+    public long getLastFetchTime(String refName)
+    {
+        StoredConfig config = repository.getConfig();
+        long lastFetch = config.getLong("reboot", null, "lastFetch", 0);
+        if (refName != null)
+        {
+            lastFetch = Math.max(lastFetch, config.getLong("reboot", refName, "lastFetch", 0));
+        }
+        return lastFetch;
+    }
+
+    /**
+     * Records that another process has fetched a ref, or every ref if the ref
+     * name is null, so this process can use the result.
+     */
+    public void markFetched(String refName)
+    {
+        if (refName == null)
+        {
+            hasFetched = true;
+        }
+        else
+        {
+            fetchedRefs.add(refName);
+        }
+    }
+
+    /**
+     * Records the time of a successful fetch of a ref, or every ref if the ref
+     * name is null, so other processes can use the result. The caller must
+     * hold the cache lock of the repository.
+     */
+    public void recordFetchTime(String refName) throws IOException
     {
-        return hasFetched;
+        StoredConfig config = repository.getConfig();
+        config.setLong("reboot", refName, "lastFetch", System.currentTimeMillis());
+        config.save();
     }
 
-    public FetchResult fetch() throws InvalidRemoteException
+    /**
+     * Fetches every ref from the remote repository. The repository only
+     * counts as fetched once the fetch has succeeded, so other threads that
+     * need it wait on the fetch lock instead of skipping the fetch.
+     */
+    public FetchResult fetch() throws InvalidRemoteException, IOException
     {
+        FetchResult result =
+            new Git(repository).fetch().setRemote("origin").setRemoveDeletedRefs(true)
+                .setTimeout(120).call();
         hasFetched = true;
-        return new Git(repository).fetch().setRemote("origin").setRemoveDeletedRefs(true)
-            .setTimeout(120).call();
+        return result;
+    }
+
+    /**
+     * Fetches a single ref from the remote repository, along with just the
+     * objects it needs. The ref only counts as fetched once the fetch has
+     * succeeded.
+     */
+    public FetchResult fetch(String refName) throws InvalidRemoteException, IOException
+    {
+        FetchResult result =
+            new Git(repository).fetch().setRemote("origin")
+                .setRefSpecs(new RefSpec().setForceUpdate(true).setSource(refName)
+                    .setDestination(refName)).setTagOpt(TagOpt.NO_TAGS).setTimeout(120)
+                .call();
+        fetchedRefs.add(refName);
+        return result;
+    }
+
+    /**
+     * Finds the remote ref named by the start of a revision and path, using
+     * the same search order as {@link Repository#getRef(String)}.
+     *
+     * @return the full name of the ref, or null if the revision doesn't name
+     *         a remote ref and can only be found by fetching every ref
+     */
+    public String findRemoteRef(String revisionAndPath) throws IOException
+    {
+        Map<String, Ref> refs = remoteRefs;
+        if (refs == null)
+        {
+            refs = new HashMap<String, Ref>();
+            try
+            {
+                for (Ref ref : new Git(repository).lsRemote().setRemote("origin").call())
+                {
+                    refs.put(ref.getName(), ref);
+                }
+            }
+            catch (GitAPIException e)
+            {
+                throw new IOException("Unable to list refs in " + uri, e);
+            }
+            catch (JGitInternalException e)
+            {
+                throw new IOException("Unable to list refs in " + uri, e);
+            }
+            remoteRefs = refs;
+        }
+
+        int index = -1;
+        do
+        {
+            index = revisionAndPath.indexOf('/', index + 1);
+            if (index == -1)
+            {
+                index = revisionAndPath.length();
+            }
+
+            String name = revisionAndPath.substring(0, index);
+            for (String prefix : REF_SEARCH_PATH)
+            {
+                String refName = prefix + name;
+                if (!refName.equals(Constants.HEAD) && refs.containsKey(refName))
+                {
+                    return refName;
+                }
+            }
+        }
+        while (index < revisionAndPath.length());
+
+        return null;
     }
 
     public GitRevision lookupRevision(String revisionAndPath) throws IOException
@@ -175,66 +353,224 @@ public class CachedRepository
             return revision.getTree();
         }
 
-        return lookupTree(revision.getTree(), revisionAndPath.substring(revisionNameLength + 1));
+        TreeIndex subtreeIndex =
+            getTreeIndex(revision.getTree()).getSubtreeIndex(
+                revisionAndPath.substring(revisionNameLength + 1));
+        if (subtreeIndex == null)
+        {
+            return null;
+        }
+
+        return subtreeIndex.getTreeId();
+    }
+
+    public TreeIndex getTreeIndex(ObjectId treeId) throws IOException
+    {
+        return TreeIndex.getTreeIndex(repository, treeId);
     }
 
     public ObjectId lookupTree(ObjectId tree, String path) throws IOException
     {
-        TreeWalk treeWalk = TreeWalk.forPath(repository, path, tree);
-        if (treeWalk == null)
+        TreeIndex.Entry entry = getTreeIndex(tree).get(path);
+        if (entry == null || !entry.isTree())
         {
             return null;
         }
+
+        return entry.getObjectId();
+    }
+
+    public ObjectId lookupBlob(ObjectId tree, String path) throws IOException
+    {
+        TreeIndex.Entry entry = getTreeIndex(tree).get(path);
+        if (entry == null || !entry.isFile())
+        {
+            return null;
+        }
+
+        return entry.getObjectId();
+    }
+
+    /**
+     * @return an idle object reader, or a new one if none is idle, which must
+     *         be handed back to {@link #releaseReader(ObjectReader)}
+     */
+    private ObjectReader getReader()
+    {
+        ObjectReader reader = readers.poll();
+        return reader != null ? reader : repository.newObjectReader();
+    }
+
+    private void releaseReader(ObjectReader reader)
+    {
+        if (!readers.offer(reader))
+        {
+            reader.release();
+        }
+    }
+
+    /**
+     * Releases the idle object readers and closes the repository.
+     */
+    public void close()
+    {
+        ObjectReader reader = readers.poll();
+        while (reader != null)
+        {
+            reader.release();
+            reader = readers.poll();
+        }
+        repository.close();
+    }
+
+    /**
+     * Opens a blob. The loader reads large blobs with its own reader, so it
+     * remains usable after the reader used to open it is released.
+     */
+    private ObjectLoader openBlob(ObjectId blobId) throws IOException
+    {
+        ObjectReader reader = getReader();
         try
         {
-            FileMode fileMode = treeWalk.getFileMode(0);
-            if (fileMode.getObjectType() != Constants.OBJ_TREE)
+            return reader.open(blobId, Constants.OBJ_BLOB);
+        }
+        finally
+        {
+            releaseReader(reader);
+        }
+    }
+
+    public long getSize(ObjectId blobId) throws IOException
+    {
+        byte[] bytes = BlobCache.getInstance().get(blobId);
+        if (bytes != null)
+        {
+            return bytes.length;
+        }
+
+        ObjectReader reader = getReader();
+        try
+        {
+            return reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+        }
+        finally
+        {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Reads the contents of a blob, using the blob cache if possible.
+     *
+     * @param blobId
+     *            the blob to read
+     * @return the contents of the blob, which must not be modified, or null if
+     *         the blob is too large to be cached and must be streamed instead
+     * @throws IOException
+     *             if the blob cannot be read
+     */
+    private byte[] getCachedBytes(ObjectId blobId) throws IOException
+    {
+        BlobCache blobCache = BlobCache.getInstance();
+        byte[] bytes = blobCache.get(blobId);
+        if (bytes == null)
+        {
+            ObjectLoader loader = openBlob(blobId);
+            if (loader.isLarge() || !blobCache.accepts(loader.getSize()))
             {
                 return null;
             }
-
-            return treeWalk.getObjectId(0);
+            bytes = loader.getBytes();
+            blobCache.put(blobId, bytes);
         }
-        finally
+        return bytes;
+    }
+
+    public byte[] getBytes(ObjectId blobId) throws IOException
+    {
+        byte[] bytes = getCachedBytes(blobId);
+        if (bytes == null)
         {
-            treeWalk.release();
+            return openBlob(blobId).getBytes(Integer.MAX_VALUE);
         }
+        return bytes.clone();
     }
 
-    public ObjectId lookupBlob(ObjectId tree, String path) throws IOException
+    /**
+     * Exports a tree into the cache, unless it has already been exported. The
+     * export directory is named by the tree id, so identical trees are only
+     * exported once and the contents never change once in place.
+     *
+     * @return the directory containing the contents of the tree
+     */
+    public File materialize(ObjectId treeId) throws IOException
     {
-        TreeWalk treeWalk = TreeWalk.forPath(repository, path, tree);
-        if (treeWalk == null)
+        File directory = new File(Reboot.getCacheDirectory(), "git-trees/" + treeId.name());
+        if (directory.isDirectory())
         {
-            return null;
+            return directory;
         }
+
+        long start = System.currentTimeMillis();
+        File tempDirectory = FileUtil.createTempFile(directory);
+        tempDirectory.delete();
         try
         {
-            FileMode fileMode = treeWalk.getFileMode(0);
-            if (fileMode.getObjectType() != Constants.OBJ_BLOB
-                || (fileMode != FileMode.REGULAR_FILE && fileMode != FileMode.EXECUTABLE_FILE))
+            if (!tempDirectory.mkdir())
             {
-                return null;
+                throw new IOException("Unable to create " + tempDirectory);
             }
 
-            return treeWalk.getObjectId(0);
+            int count = 0;
+            for (Map.Entry<String, TreeIndex.Entry> entry : getTreeIndex(treeId).list("", true))
+            {
+                File file = new File(tempDirectory, entry.getKey());
+                if (entry.getValue().isTree())
+                {
+                    file.mkdir();
+                }
+                else if (entry.getValue().isFile())
+                {
+                    FileOutputStream outputStream = new FileOutputStream(file);
+                    try
+                    {
+                        openBlob(entry.getValue().getObjectId()).copyTo(outputStream);
+                    }
+                    finally
+                    {
+                        outputStream.close();
+                    }
+                    if (entry.getValue().getFileMode() == FileMode.EXECUTABLE_FILE)
+                    {
+                        file.setExecutable(true);
+                    }
+                    count++;
+                }
+            }
+
+            // another process may have exported the same tree in the meantime
+            if (!tempDirectory.renameTo(directory) && !directory.isDirectory())
+            {
+                throw new IOException("Unable to rename " + tempDirectory + " to " + directory);
+            }
+
+            Reboot.info("Materialized " + count + " files from tree " + treeId.name() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
         }
         finally
         {
-            treeWalk.release();
+            FileUtil.deleteRecursively(tempDirectory);
         }
+        return directory;
     }
 
     public InputStream open(ObjectId blobId) throws IOException
     {
-        return repository.getObjectDatabase().open(blobId).openStream();
-    }
-
-    public TreeWalk openTree(ObjectId treeId, boolean recursive) throws IOException
-    {
-        TreeWalk treeWalk = new TreeWalk(repository.getObjectDatabase().newReader());
-        treeWalk.reset(treeId);
-        treeWalk.setRecursive(recursive);
-        return treeWalk;
+        byte[] bytes = getCachedBytes(blobId);
+        if (bytes == null)
+        {
+            return openBlob(blobId).openStream();
+        }
+        return new ByteArrayInputStream(bytes);
     }
 }
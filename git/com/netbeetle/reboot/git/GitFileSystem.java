@@ -21,11 +21,9 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.treewalk.TreeWalk;
 
 import com.netbeetle.reboot.core.RebootDirectory;
 import com.netbeetle.reboot.core.RebootFile;
@@ -36,43 +34,30 @@ public class GitFileSystem implements RebootFileSystem
 {
     private final CachedRepository cachedRepository;
     private final ObjectId treeId;
+    private volatile TreeIndex treeIndex;
 
     private class GitDirectory extends RebootDirectory
     {
-        private final ObjectId directoryTreeId;
-
-        public GitDirectory(String name, ObjectId directoryTreeId)
+        public GitDirectory(String name)
         {
             super(name);
-            this.directoryTreeId = directoryTreeId;
         }
 
         @Override
         public Collection<RebootFile> list(boolean recursive) throws IOException
         {
             List<RebootFile> contents = new ArrayList<RebootFile>();
-            TreeWalk treeWalk = cachedRepository.openTree(directoryTreeId, recursive);
-            try
+            for (Map.Entry<String, TreeIndex.Entry> entry : getTreeIndex().list(getName(),
+                recursive))
             {
-                while (treeWalk.next())
+                if (entry.getValue().isTree())
                 {
-                    FileMode fileMode = treeWalk.getFileMode(0);
-                    if (fileMode.getObjectType() == Constants.OBJ_TREE)
-                    {
-                        contents.add(new GitDirectory(getName() + treeWalk.getPathString(),
-                            treeWalk.getObjectId(0)));
-                    }
-                    else if (fileMode.getObjectType() == Constants.OBJ_BLOB
-                        && (fileMode == FileMode.REGULAR_FILE || fileMode == FileMode.EXECUTABLE_FILE))
-                    {
-                        contents.add(new GitFile(getName() + treeWalk.getPathString(), treeWalk
-                            .getObjectId(0)));
-                    }
+                    contents.add(new GitDirectory(entry.getKey() + '/'));
+                }
+                else if (entry.getValue().isFile())
+                {
+                    contents.add(new GitFile(entry.getKey(), entry.getValue().getObjectId()));
                 }
-            }
-            finally
-            {
-                treeWalk.release();
             }
             return contents;
         }
@@ -81,6 +66,7 @@ public class GitFileSystem implements RebootFileSystem
     private class GitFile extends RebootStreamFile
     {
         private final ObjectId blobId;
+        private volatile long size = -1;
 
         public GitFile(String name, ObjectId blobId)
         {
@@ -88,6 +74,32 @@ public class GitFileSystem implements RebootFileSystem
             this.blobId = blobId;
         }
 
+        @Override
+        public long getSize()
+        {
+            long result = size;
+            if (result == -1)
+            {
+                try
+                {
+                    result = cachedRepository.getSize(blobId);
+                }
+                catch (IOException e)
+                {
+                    // the size is unknown, so it will be found by reading
+                    return -1;
+                }
+                size = result;
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException
+        {
+            return cachedRepository.getBytes(blobId);
+        }
+
         @Override
         public InputStream getInputStream() throws IOException
         {
@@ -101,34 +113,43 @@ public class GitFileSystem implements RebootFileSystem
         this.treeId = treeId;
     }
 
+    private TreeIndex getTreeIndex() throws IOException
+    {
+        TreeIndex result = treeIndex;
+        if (result == null)
+        {
+            result = cachedRepository.getTreeIndex(treeId);
+            treeIndex = result;
+        }
+        return result;
+    }
+
     @Override
     public RebootFile getFile(String name) throws IOException
     {
         if (name.isEmpty())
         {
-            return new GitDirectory(name, treeId);
+            return new GitDirectory(name);
         }
 
         if (name.endsWith("/"))
         {
-            String path = name.substring(0, name.length() - 1);
-
-            ObjectId directoryTreeId = cachedRepository.lookupTree(treeId, path);
-            if (directoryTreeId == null)
+            TreeIndex.Entry entry = getTreeIndex().get(name.substring(0, name.length() - 1));
+            if (entry == null || !entry.isTree())
             {
                 return null;
             }
 
-            return new GitDirectory(name, directoryTreeId);
+            return new GitDirectory(name);
         }
 
-        ObjectId blobId = cachedRepository.lookupBlob(treeId, name);
-        if (blobId == null)
+        TreeIndex.Entry entry = getTreeIndex().get(name);
+        if (entry == null || !entry.isFile())
         {
             return null;
         }
 
-        return new GitFile(name, blobId);
+        return new GitFile(name, entry.getObjectId());
     }
 
     @Override
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.git;
+
+import java.util.List;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootException;
+
+/**
+ * Repacks every cached Git repository, reporting the pack and loose object
+ * counts and the object lookup time before and after.
+ */
+public class GitMaintenanceAction implements RebootAction
+{
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        if (!arguments.getActionArgs().isEmpty())
+        {
+            throw new RebootException("Unsupported arguments: " + arguments.getActionArgs());
+        }
+
+        List<RepositoryMaintenance> repositories =
+            RepositoryMaintenance.findRepositories(Reboot.getCacheDirectory());
+        Reboot.info("Found " + repositories.size() + " cached repositories");
+
+        for (RepositoryMaintenance repository : repositories)
+        {
+            try
+            {
+                String before = describe(repository);
+                long start = System.currentTimeMillis();
+                repository.repack();
+                long time = System.currentTimeMillis() - start;
+                Reboot.info("Repacked " + repository.getDirectory() + " in " + time + " ms"
+                    + String.format("%n  before: ") + before + String.format("%n  after:  ")
+                    + describe(repository));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RebootException("Interrupted while repacking", e);
+            }
+            catch (Exception e)
+            {
+                Reboot.info("Unable to repack " + repository.getDirectory() + ": " + e);
+            }
+        }
+    }
+
+    private static String describe(RepositoryMaintenance repository) throws Exception
+    {
+        return String.format("%d packs, %d loose objects, %.1f us per object lookup",
+            Integer.valueOf(repository.countPacks()),
+            Integer.valueOf(repository.countLooseObjects()),
+            Double.valueOf(repository.measureLookupTime()));
+    }
+}
@@ -16,46 +16,195 @@
 
 package com.netbeetle.reboot.git;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jgit.api.errors.InvalidRemoteException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.storage.file.FileRepository;
 
+import com.netbeetle.reboot.core.CacheLock;
+import com.netbeetle.reboot.core.LockFile;
 import com.netbeetle.reboot.core.Reboot;
 import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.RebootFileSystem;
+import com.netbeetle.reboot.core.RebootThreadFactory;
+import com.netbeetle.reboot.core.StandardFileSystem;
 import com.netbeetle.reboot.core.URIResolver;
+import com.netbeetle.reboot.core.URIResolverContext;
+import com.netbeetle.reboot.core.URISettings;
 
 public class GitURIResolver implements URIResolver
 {
-    private final Map<String, CachedRepository> repositories =
-        new HashMap<String, CachedRepository>();
+    /**
+     * The number of seconds a fetched branch is considered fresh. Fresh
+     * branches are used without fetching again, even in a new process.
+     */
+    public static final String FETCH_TTL = "git.fetchTTL";
 
+    /**
+     * If true, a stale branch is used immediately and fetched in the
+     * background, so the next launch sees the updated branch.
+     */
+    public static final String STALE_WHILE_REVALIDATE = "git.staleWhileRevalidate";
+
+    /**
+     * Either "mirror", to fetch every ref the first time a repository needs
+     * fetching, or "narrow", to fetch only the refs named by module URIs.
+     * Revisions that don't name a remote ref are still found with a full
+     * fetch.
+     */
+    public static final String FETCH_MODE = "git.fetchMode";
+
+    public static final String MIRROR = "mirror";
+    public static final String NARROW = "narrow";
+
+    /**
+     * If true, resolved trees are exported once into the cache and served from
+     * plain files instead of being inflated from Git objects on every read.
+     */
+    public static final String MATERIALIZE = "git.materialize";
+
+    /**
+     * If true, which is the default, repositories with too many packs or
+     * loose objects are repacked in the background when the application
+     * exits. Repacking requires the git command line tool.
+     */
+    public static final String AUTO_MAINTENANCE = "git.autoMaintenance";
+
+    /** The number of packs that triggers a repack, 8 by default. */
+    public static final String MAX_PACKS = "git.maxPacks";
+
+    /** The number of loose objects that triggers a repack, 1000 by default. */
+    public static final String MAX_LOOSE_OBJECTS = "git.maxLooseObjects";
+
+    /**
+     * If true, which is the default, cached repositories keep their objects in
+     * a store shared through Git alternates, so objects already fetched for
+     * another repository are not fetched or stored again.
+     */
+    public static final String SHARED_OBJECTS = "git.sharedObjects";
+
+    // the number of seconds the JVM waits at exit for background fetches
+    private static final long EXIT_FETCH_TIMEOUT = Long.getLong(
+        "com.netbeetle.reboot.git.exitFetchTimeout", 10).longValue();
+
+    private final URISettings settings;
+    private final LockFile lockFile;
+    private final ExecutorService fetchExecutor = Executors
+        .newCachedThreadPool(new RebootThreadFactory("reboot-git-fetch"));
+    private final Set<CachedRepository> sharingRepositories = Collections
+        .newSetFromMap(new ConcurrentHashMap<CachedRepository, Boolean>());
+    private SharedObjectStore sharedObjectStore;
+    private final AtomicBoolean shutdownHookRegistered = new AtomicBoolean(false);
+    private final Set<CachedRepository> preparedRepositories = Collections
+        .newSetFromMap(new ConcurrentHashMap<CachedRepository, Boolean>());
+    private final Set<String> backgroundFetches = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<File, URI> maintainedRepositories =
+        new ConcurrentHashMap<File, URI>();
+    private final ConcurrentMap<String, CachedRepository> repositories =
+        new ConcurrentHashMap<String, CachedRepository>();
+    private final ConcurrentMap<String, FutureTask<RebootFileSystem>> resolving =
+        new ConcurrentHashMap<String, FutureTask<RebootFileSystem>>();
+
+    public GitURIResolver(URIResolverContext context)
+    {
+        this.settings = context.getSettings();
+        this.lockFile = context.getLockFile();
+    }
+
+    /**
+     * Resolves a Git URI. Requests for different repositories run
+     * concurrently, and concurrent requests for the same URI share a single
+     * resolution.
+     */
     @Override
-    public synchronized GitFileSystem resolve(URI uri) throws RebootException
+    public RebootFileSystem resolve(final URI uri) throws RebootException
     {
         String uriString = uri.toString();
-        int start = uriString.startsWith("git+") ? 4 : 0;
-        int end = uriString.indexOf(".git/") + 4;
-        int revisionAndPathStart = end + 1;
-        if (end == 3)
+        FutureTask<RebootFileSystem> task =
+            new FutureTask<RebootFileSystem>(new Callable<RebootFileSystem>()
+            {
+                @Override
+                public RebootFileSystem call() throws RebootException
+                {
+                    return resolveNow(uri);
+                }
+            });
+
+        FutureTask<RebootFileSystem> existingTask = resolving.putIfAbsent(uriString, task);
+        if (existingTask == null)
         {
-            end = uriString.indexOf("!/");
-            revisionAndPathStart = end + 2;
-            if (end == -1)
+            try
             {
-                throw new RebootException("Unabled to determine base URL for Git repository: "
-                    + uri);
+                task.run();
+            }
+            finally
+            {
+                resolving.remove(uriString, task);
             }
         }
+        else
+        {
+            task = existingTask;
+        }
 
-        String repositoryURI = uriString.substring(start, end);
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RebootException("Interrupted while resolving " + uri, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RebootException)
+            {
+                throw (RebootException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new RebootException("Unable to resolve " + uri, cause);
+        }
+    }
+
+    private synchronized SharedObjectStore getSharedObjectStore() throws IOException
+    {
+        if (sharedObjectStore == null)
+        {
+            sharedObjectStore = SharedObjectStore.getDefault();
+        }
+        return sharedObjectStore;
+    }
 
+    private CachedRepository getRepository(String repositoryURI, URI uri)
+        throws RebootException
+    {
         CachedRepository cachedRepository = repositories.get(repositoryURI);
         if (cachedRepository == null)
         {
@@ -63,13 +212,60 @@ public class GitURIResolver implements URIResolver
             {
                 Repository repository =
                     new FileRepository(Reboot.getCacheLocation(repositoryURI));
-
                 cachedRepository = new CachedRepository(repositoryURI, repository);
+            }
+            catch (IOException e)
+            {
+                throw new RebootException("Unable to retrieve repository", e);
+            }
+
+            CachedRepository existingRepository =
+                repositories.putIfAbsent(repositoryURI, cachedRepository);
+            if (existingRepository != null)
+            {
+                // another thread opened the repository first
+                cachedRepository.close();
+                cachedRepository = existingRepository;
+            }
+        }
+
+        // once this process has seen the repository initialized and attached
+        // there's nothing left to serialize, so resolving never waits behind
+        // another thread
+        boolean shared = settings.getBoolean(uri, SHARED_OBJECTS, true);
+        if (preparedRepositories.contains(cachedRepository)
+            && (!shared || sharingRepositories.contains(cachedRepository)))
+        {
+            return cachedRepository;
+        }
 
-                if (!cachedRepository.exists())
+        // initialization is serialized per repository, both within this
+        // process and across processes sharing the cache
+        synchronized (cachedRepository)
+        {
+            try
+            {
+                CacheLock cacheLock =
+                    CacheLock.get(cachedRepository.getRepository().getDirectory());
+                cacheLock.lock();
+                try
                 {
-                    Reboot.info("Initializing new repository " + repositoryURI);
-                    cachedRepository.init();
+                    if (!cachedRepository.exists())
+                    {
+                        Reboot.info("Initializing new repository " + repositoryURI);
+                        cachedRepository.init();
+                    }
+
+                    if (shared && !sharingRepositories.contains(cachedRepository))
+                    {
+                        getSharedObjectStore().attach(cachedRepository.getRepository());
+                        sharingRepositories.add(cachedRepository);
+                    }
+                    preparedRepositories.add(cachedRepository);
+                }
+                finally
+                {
+                    cacheLock.unlock();
                 }
             }
             catch (URISyntaxException e)
@@ -80,8 +276,30 @@ public class GitURIResolver implements URIResolver
             {
                 throw new RebootException("Unable to retrieve repository", e);
             }
-            repositories.put(repositoryURI, cachedRepository);
         }
+        return cachedRepository;
+    }
+
+    private RebootFileSystem resolveNow(URI uri) throws RebootException
+    {
+        String uriString = uri.toString();
+        int start = uriString.startsWith("git+") ? 4 : 0;
+        int end = uriString.indexOf(".git/") + 4;
+        int revisionAndPathStart = end + 1;
+        if (end == 3)
+        {
+            end = uriString.indexOf("!/");
+            revisionAndPathStart = end + 2;
+            if (end == -1)
+            {
+                throw new RebootException("Unabled to determine base URL for Git repository: "
+                    + uri);
+            }
+        }
+
+        String repositoryURI = uriString.substring(start, end);
+
+        CachedRepository cachedRepository = getRepository(repositoryURI, uri);
 
         String revisionAndPath = uriString.substring(revisionAndPathStart);
         if (revisionAndPath.endsWith("/"))
@@ -89,35 +307,72 @@ public class GitURIResolver implements URIResolver
             revisionAndPath = revisionAndPath.substring(0, revisionAndPath.length() - 1);
         }
 
+        if (settings.getBoolean(uri, AUTO_MAINTENANCE, true)
+            && maintainedRepositories.putIfAbsent(cachedRepository.getRepository()
+                .getDirectory(), uri) == null)
+        {
+            registerShutdownHook();
+        }
+
+        String pin = lockFile == null ? null : lockFile.get(uri);
+        if (pin != null)
+        {
+            return resolvePinned(uri, cachedRepository, pin);
+        }
+
         try
         {
             GitRevision gitRevision = cachedRepository.lookupRevision(revisionAndPath);
 
-            if (!cachedRepository.hasFetched())
+            boolean narrow = NARROW.equals(settings.get(uri, FETCH_MODE, MIRROR));
+            String refName = gitRevision == null ? null : gitRevision.getRefName();
+
+            // a missing revision always goes through the fetch lock, so it
+            // waits for a fetch another thread has started and fetch() skips
+            // the transfer if that fetch already covered it
+            if (gitRevision == null || !cachedRepository.hasFetched(refName))
             {
                 boolean needFetch;
                 if (gitRevision == null)
                 {
                     needFetch = true;
                 }
+                else if (refName == null)
+                {
+                    needFetch = false;
+                }
                 else
                 {
-                    String ref = gitRevision.getRefName();
-                    if (ref == null)
+                    needFetch = refName.startsWith("refs/heads/");
+                }
+
+                if (needFetch && gitRevision != null
+                    && (lockFile == null || !lockFile.isUpdating()))
+                {
+                    long age =
+                        System.currentTimeMillis() - cachedRepository.getLastFetchTime(refName);
+                    if (age < settings.getLong(uri, FETCH_TTL, 0) * 1000)
                     {
                         needFetch = false;
                     }
-                    else
+                    else if (settings.getBoolean(uri, STALE_WHILE_REVALIDATE, false))
                     {
-                        needFetch = ref.startsWith("refs/heads/");
+                        fetchInBackground(cachedRepository, narrow ? refName : null);
+                        needFetch = false;
                     }
                 }
 
                 if (needFetch)
                 {
-                    Reboot.info("Fetching from " + repositoryURI);
-                    cachedRepository.fetch();
-                    Reboot.info("Finished fetching from " + repositoryURI);
+                    if (narrow && refName == null)
+                    {
+                        refName = cachedRepository.findRemoteRef(revisionAndPath);
+                    }
+
+                    synchronized (cachedRepository.getFetchLock())
+                    {
+                        fetch(cachedRepository, narrow ? refName : null);
+                    }
 
                     gitRevision = cachedRepository.lookupRevision(revisionAndPath);
                 }
@@ -138,7 +393,14 @@ public class GitURIResolver implements URIResolver
                     + " in repository");
             }
 
-            return new GitFileSystem(cachedRepository, treeId);
+            // a branch that is meant to be refreshed on later launches is only
+            // pinned on request, or its refresh settings would never apply
+            if (lockFile != null && (lockFile.isUpdating() || !isRefreshed(uri)))
+            {
+                lockFile.put(uri, gitRevision.getCommit().name() + ' ' + treeId.name());
+            }
+
+            return createFileSystem(uri, cachedRepository, treeId);
         }
         catch (IOException e)
         {
@@ -149,4 +411,248 @@ public class GitURIResolver implements URIResolver
             throw new RebootException("Unable to find " + revisionAndPath + " in repository", e);
         }
     }
+
+    /**
+     * @return true if the settings for a URI ask for its branch to be used for
+     *         a while and then fetched again
+     */
+    private boolean isRefreshed(URI uri) throws RebootException
+    {
+        return settings.getLong(uri, FETCH_TTL, 0) > 0
+            || settings.getBoolean(uri, STALE_WHILE_REVALIDATE, false);
+    }
+
+    private RebootFileSystem createFileSystem(URI uri, CachedRepository cachedRepository,
+        ObjectId treeId) throws RebootException
+    {
+        if (!settings.getBoolean(uri, MATERIALIZE, false))
+        {
+            return new GitFileSystem(cachedRepository, treeId);
+        }
+
+        try
+        {
+            return new StandardFileSystem(cachedRepository.materialize(treeId), treeId.name());
+        }
+        catch (IOException e)
+        {
+            throw new RebootException("Unable to materialize " + uri, e);
+        }
+    }
+
+    /**
+     * Resolves a URI to the tree in its pin, without looking up the revision.
+     * The repository is only fetched if the pinned tree is missing.
+     */
+    private RebootFileSystem resolvePinned(URI uri, CachedRepository cachedRepository, String pin)
+        throws RebootException
+    {
+        String[] ids = pin.split(" ");
+        if (ids.length != 2 || !ObjectId.isId(ids[0]) || !ObjectId.isId(ids[1]))
+        {
+            throw new RebootException("Invalid pin for " + uri + " in " + lockFile.getFile()
+                + ": " + pin);
+        }
+
+        ObjectId treeId = ObjectId.fromString(ids[1]);
+        try
+        {
+            if (!cachedRepository.getRepository().hasObject(treeId))
+            {
+                synchronized (cachedRepository.getFetchLock())
+                {
+                    fetch(cachedRepository, null);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RebootException("Unable to fetch pinned commit " + ids[0], e);
+        }
+        catch (InvalidRemoteException e)
+        {
+            throw new RebootException("Unable to fetch pinned commit " + ids[0], e);
+        }
+
+        if (!cachedRepository.getRepository().hasObject(treeId))
+        {
+            throw new RebootException("Pinned commit " + ids[0] + " not found for " + uri
+                + ", run \"rbt lock\" to update the pins");
+        }
+
+        return createFileSystem(uri, cachedRepository, treeId);
+    }
+
+    private void registerShutdownHook()
+    {
+        if (shutdownHookRegistered.getAndSet(true))
+        {
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                // let background fetches finish when the application exits,
+                // so the next launch sees the fetched branches, but don't hold
+                // the JVM open for long on a slow remote
+                fetchExecutor.shutdown();
+                try
+                {
+                    if (!fetchExecutor.awaitTermination(EXIT_FETCH_TIMEOUT, TimeUnit.SECONDS))
+                    {
+                        Reboot.info("Abandoning background fetches after " + EXIT_FETCH_TIMEOUT
+                            + " seconds");
+                        fetchExecutor.shutdownNow();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // exit without waiting
+                    return;
+                }
+
+                startMaintenance();
+            }
+        });
+    }
+
+    /**
+     * Starts repacking the repositories used by this process that have
+     * accumulated too many packs or loose objects. The repacks run in
+     * separate processes, so they don't delay the exit of the application.
+     */
+    private void startMaintenance()
+    {
+        for (Map.Entry<File, URI> entry : maintainedRepositories.entrySet())
+        {
+            RepositoryMaintenance maintenance = new RepositoryMaintenance(entry.getKey());
+            URI uri = entry.getValue();
+            try
+            {
+                if (maintenance.needsMaintenance(settings.getLong(uri, MAX_PACKS, 8),
+                    settings.getLong(uri, MAX_LOOSE_OBJECTS, 1000)))
+                {
+                    Reboot.info("Repacking " + entry.getKey() + " in the background");
+                    maintenance.startRepack();
+                }
+            }
+            catch (Exception e)
+            {
+                Reboot.info("Unable to repack " + entry.getKey() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Fetches a repository, or a single ref of it, without waiting for the
+     * result. Nothing counts as fetched until the fetch succeeds, so a
+     * resolve that can't find its revision in the meantime still waits for a
+     * fetch on the fetch lock. Only one background fetch of each ref is
+     * queued at a time.
+     */
+    private void fetchInBackground(final CachedRepository cachedRepository,
+        final String refName)
+    {
+        final String key = cachedRepository.getUri() + ' ' + refName;
+        if (!backgroundFetches.add(key))
+        {
+            return;
+        }
+
+        registerShutdownHook();
+        fetchExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    synchronized (cachedRepository.getFetchLock())
+                    {
+                        fetch(cachedRepository, refName);
+                    }
+                }
+                catch (Exception e)
+                {
+                    Reboot.info("Unable to fetch from " + cachedRepository.getUri() + ": " + e);
+                }
+                finally
+                {
+                    backgroundFetches.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a single ref, or every ref if the ref name is null, unless it
+     * has already been fetched by this process. The caller must hold the fetch
+     * lock of the repository.
+     */
+    private void fetch(CachedRepository cachedRepository, String refName)
+        throws InvalidRemoteException, IOException
+    {
+        if (cachedRepository.hasFetched(refName))
+        {
+            return;
+        }
+
+        String source = "from " + cachedRepository.getUri();
+        if (refName != null)
+        {
+            source = refName + ' ' + source;
+        }
+
+        // the fetch runs under the cross-process lock, so parallel launches
+        // on a cold cache fetch once and the others reuse the result, and
+        // no fetch writes packs while the shared store is absorbing them
+        CacheLock cacheLock = CacheLock.get(cachedRepository.getRepository().getDirectory());
+        cacheLock.lock();
+        try
+        {
+            if (cachedRepository.getLastFetchTime(refName) >= cachedRepository.getOpenTime())
+            {
+                // another process fetched since this one started using the
+                // repository, so its refs are at least as fresh
+                Reboot.info("Using fetch " + source + " by another process");
+                cachedRepository.markFetched(refName);
+                return;
+            }
+
+            Reboot.info("Fetching " + source);
+            if (refName == null)
+            {
+                cachedRepository.fetch();
+            }
+            else
+            {
+                cachedRepository.fetch(refName);
+            }
+            Reboot.info("Finished fetching " + source);
+
+            cachedRepository.recordFetchTime(refName);
+
+            if (sharingRepositories.contains(cachedRepository))
+            {
+                // fetched packs accumulate in the shared store, so it is
+                // maintained whenever a repository that uses it is maintained
+                SharedObjectStore store = getSharedObjectStore();
+                store.absorb(cachedRepository);
+                URI uri =
+                    maintainedRepositories
+                        .get(cachedRepository.getRepository().getDirectory());
+                if (uri != null)
+                {
+                    maintainedRepositories.putIfAbsent(store.getDirectory(), uri);
+                }
+            }
+        }
+        finally
+        {
+            cacheLock.unlock();
+        }
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import com.netbeetle.reboot.core.Reboot;
+
+/**
+ * Keeps cached repositories compact. Each fetch adds a pack, and object
+ * lookups get slower as packs accumulate, so repositories with too many packs
+ * or loose objects are repacked into a single pack. Objects borrowed from the
+ * shared object store are left out of the pack. jgit 1.3 cannot repack, so
+ * the git command line tool is used when it is available.
+ */
+public class RepositoryMaintenance
+{
+    private static final int SAMPLE_SIZE = 2000;
+
+    private final File directory;
+
+    public RepositoryMaintenance(File directory)
+    {
+        this.directory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public int countPacks()
+    {
+        File[] files = new File(directory, "objects/pack").listFiles();
+        int count = 0;
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.getName().endsWith(".pack"))
+                {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int countLooseObjects()
+    {
+        File[] directories = new File(directory, "objects").listFiles();
+        int count = 0;
+        if (directories != null)
+        {
+            for (File objectDirectory : directories)
+            {
+                // loose objects are stored in directories named by the first
+                // two hex digits of their id
+                if (objectDirectory.getName().length() == 2)
+                {
+                    String[] names = objectDirectory.list();
+                    if (names != null)
+                    {
+                        count += names.length;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    public boolean needsMaintenance(long maxPacks, long maxLooseObjects)
+    {
+        return countPacks() > maxPacks || countLooseObjects() > maxLooseObjects;
+    }
+
+    /**
+     * Measures the average time taken to look up objects. The objects are the
+     * contents of the trees of the first refs, so the sample is the same
+     * before and after repacking.
+     *
+     * @return the average lookup time in microseconds, or -1 if the
+     *         repository contains no trees to sample
+     */
+    public double measureLookupTime() throws IOException
+    {
+        // a new repository sees the current set of packs
+        Repository repository = new FileRepository(directory);
+        try
+        {
+            List<ObjectId> sample = new ArrayList<ObjectId>();
+            RevWalk revWalk = new RevWalk(repository);
+            try
+            {
+                for (Ref ref : repository.getAllRefs().values())
+                {
+                    if (sample.size() >= SAMPLE_SIZE || ref.getObjectId() == null)
+                    {
+                        continue;
+                    }
+                    ObjectId treeId;
+                    try
+                    {
+                        treeId = revWalk.parseCommit(ref.getObjectId()).getTree();
+                    }
+                    catch (IOException e)
+                    {
+                        // not a commit
+                        continue;
+                    }
+                    for (Map.Entry<String, TreeIndex.Entry> entry : TreeIndex.getTreeIndex(
+                        repository, treeId).list("", true))
+                    {
+                        if (sample.size() < SAMPLE_SIZE && entry.getValue().isFile())
+                        {
+                            sample.add(entry.getValue().getObjectId());
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                revWalk.release();
+            }
+
+            if (sample.isEmpty())
+            {
+                return -1;
+            }
+
+            ObjectReader reader = repository.newObjectReader();
+            try
+            {
+                long start = System.nanoTime();
+                for (ObjectId objectId : sample)
+                {
+                    reader.open(objectId).getSize();
+                }
+                return (System.nanoTime() - start) / 1000.0 / sample.size();
+            }
+            finally
+            {
+                reader.release();
+            }
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    private ProcessBuilder repackCommand()
+    {
+        ProcessBuilder processBuilder =
+            new ProcessBuilder("git", "repack", "-a", "-d", "-l", "-q").directory(directory);
+        processBuilder.redirectErrorStream(true);
+        return processBuilder;
+    }
+
+    /**
+     * Repacks the repository and waits for the repack to finish.
+     */
+    public void repack() throws IOException, InterruptedException
+    {
+        Process process = repackCommand().start();
+        process.getOutputStream().close();
+        InputStream inputStream = process.getInputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try
+        {
+            byte[] buffer = new byte[4096];
+            int bytesRead = inputStream.read(buffer);
+            while (bytesRead != -1)
+            {
+                output.write(buffer, 0, bytesRead);
+                bytesRead = inputStream.read(buffer);
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        int exitCode = process.waitFor();
+        if (exitCode != 0)
+        {
+            throw new IOException("git repack failed with exit code " + exitCode + ": "
+                + output.toString().trim());
+        }
+    }
+
+    /**
+     * Starts repacking the repository without waiting. The repack continues
+     * after the JVM exits. Readers of the repository are not affected, since
+     * old packs are only removed once the new pack is in place. The output of
+     * git is appended to git-maintenance.log in the cache directory, since a
+     * pipe to this JVM would break once it exits.
+     */
+    public void startRepack() throws IOException
+    {
+        File logFile = new File(Reboot.getCacheDirectory(), "git-maintenance.log");
+        logFile.getParentFile().mkdirs();
+        ProcessBuilder processBuilder = repackCommand();
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile));
+        processBuilder.start().getOutputStream().close();
+    }
+
+    /**
+     * Finds the cached repositories below a directory.
+     */
+    public static List<RepositoryMaintenance> findRepositories(File cacheDirectory)
+    {
+        List<RepositoryMaintenance> repositories = new ArrayList<RepositoryMaintenance>();
+        File[] files = cacheDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                // materialized trees can be large and never contain repositories
+                if (file.isDirectory() && !file.getName().equals("git-trees"))
+                {
+                    findRepositories(file, repositories);
+                }
+            }
+        }
+        return repositories;
+    }
+
+    private static void findRepositories(File directory,
+        List<RepositoryMaintenance> repositories)
+    {
+        if (new File(directory, "HEAD").isFile() && new File(directory, "objects").isDirectory()
+            && new File(directory, "refs").isDirectory())
+        {
+            repositories.add(new RepositoryMaintenance(directory));
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.isDirectory())
+                {
+                    findRepositories(file, repositories);
+                }
+            }
+        }
+    }
+}
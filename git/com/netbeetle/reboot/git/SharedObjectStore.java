@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import com.netbeetle.reboot.core.CacheLock;
+import com.netbeetle.reboot.core.FileUtil;
+import com.netbeetle.reboot.core.HashUtil;
+import com.netbeetle.reboot.core.Reboot;
+
+/**
+ * An object database shared by every cached repository through Git
+ * alternates. Packs fetched into a cached repository are moved into the
+ * shared store, and the refs of each repository are mirrored into the store
+ * under refs/reboot/&lt;hash of repository URI&gt;/. The mirrored refs keep
+ * the objects reachable, and are advertised as haves when fetching, so forks
+ * and mirrors of the same project only fetch the objects that are new.
+ */
+public class SharedObjectStore
+{
+    private static final String NAMESPACE = "refs/reboot/";
+
+    private final Repository repository;
+
+    public SharedObjectStore(File directory) throws IOException
+    {
+        repository = new FileRepository(directory);
+    }
+
+    public static SharedObjectStore getDefault() throws IOException
+    {
+        return new SharedObjectStore(new File(Reboot.getCacheDirectory(), "git-shared.git"));
+    }
+
+    public File getDirectory()
+    {
+        return repository.getDirectory();
+    }
+
+    private File getObjectsDirectory()
+    {
+        return new File(repository.getDirectory(), "objects").getAbsoluteFile();
+    }
+
+    /**
+     * Points a cached repository at the shared store. This must happen
+     * before the repository reads any objects.
+     */
+    public synchronized void attach(Repository cachedRepository) throws IOException
+    {
+        if (!repository.getDirectory().exists())
+        {
+            CacheLock cacheLock = CacheLock.get(repository.getDirectory());
+            cacheLock.lock();
+            try
+            {
+                if (!repository.getDirectory().exists())
+                {
+                    repository.create(true);
+                }
+            }
+            finally
+            {
+                cacheLock.unlock();
+            }
+        }
+
+        File alternates = new File(cachedRepository.getDirectory(), "objects/info/alternates");
+        if (!alternates.exists())
+        {
+            FileUtil.write(alternates, (getObjectsDirectory().getPath() + '\n')
+                .getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Moves the packs of a cached repository into the shared store and
+     * mirrors its refs. The caller must hold the lock on the repository.
+     */
+    public synchronized void absorb(CachedRepository cachedRepository) throws IOException
+    {
+        // other processes may be absorbing other repositories
+        CacheLock cacheLock = CacheLock.get(repository.getDirectory());
+        cacheLock.lock();
+        try
+        {
+            absorbPacks(cachedRepository);
+        }
+        finally
+        {
+            cacheLock.unlock();
+        }
+    }
+
+    private void absorbPacks(CachedRepository cachedRepository) throws IOException
+    {
+        Repository cached = cachedRepository.getRepository();
+
+        // the refs that keep the objects reachable are written first, so a
+        // repack of the store by another process never sees the new packs
+        // unreferenced and deletes them
+        mirrorRefs(cachedRepository.getUri(), cached);
+
+        File packDirectory = new File(cached.getDirectory(), "objects/pack");
+        File sharedPackDirectory = new File(getObjectsDirectory(), "pack");
+        sharedPackDirectory.mkdirs();
+
+        File[] files = packDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (name.startsWith("pack-") && name.endsWith(".pack"))
+                {
+                    String baseName = name.substring(0, name.length() - 5);
+                    // the index goes last, since a pack is only used once its
+                    // index exists
+                    for (String extension : new String[] {".pack", ".bitmap", ".idx"})
+                    {
+                        move(new File(packDirectory, baseName + extension), new File(
+                            sharedPackDirectory, baseName + extension));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void move(File source, File target) throws IOException
+    {
+        if (!source.exists())
+        {
+            return;
+        }
+
+        // packs are named by their contents, so an existing pack is identical
+        if (target.exists())
+        {
+            source.delete();
+        }
+        else if (!source.renameTo(target))
+        {
+            throw new IOException("Unable to move " + source + " to " + target);
+        }
+    }
+
+    private void mirrorRefs(String uri, Repository cached) throws IOException
+    {
+        String namespace;
+        try
+        {
+            namespace = NAMESPACE + HashUtil.hash(uri) + '/';
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Unable to compute hash", e);
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (Ref ref : cached.getAllRefs().values())
+        {
+            if (!ref.getName().startsWith(Constants.R_REFS) || ref.getObjectId() == null)
+            {
+                continue;
+            }
+
+            String name = namespace + ref.getName().substring(Constants.R_REFS.length());
+            names.add(name);
+            RefUpdate refUpdate = repository.updateRef(name);
+            refUpdate.setNewObjectId(ref.getObjectId());
+            refUpdate.setForceUpdate(true);
+            check(refUpdate.update(), name);
+        }
+
+        for (Map.Entry<String, Ref> entry : repository.getRefDatabase().getRefs(namespace)
+            .entrySet())
+        {
+            String name = entry.getValue().getName();
+            if (!names.contains(name))
+            {
+                RefUpdate refUpdate = repository.updateRef(name);
+                refUpdate.setForceUpdate(true);
+                check(refUpdate.delete(), name);
+            }
+        }
+    }
+
+    private static void check(RefUpdate.Result result, String name) throws IOException
+    {
+        switch (result)
+        {
+            case NEW:
+            case FORCED:
+            case FAST_FORWARD:
+            case NO_CHANGE:
+                break;
+            default:
+                throw new IOException("Unable to update " + name + ": " + result);
+        }
+    }
+}
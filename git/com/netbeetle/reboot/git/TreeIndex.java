@@ -0,0 +1,291 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netbeetle.reboot.git;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import com.netbeetle.reboot.core.FileUtil;
+import com.netbeetle.reboot.core.Reboot;
+
+/**
+ * A flattened index of every path inside a Git tree. The index is built with
+ * a single walk of the tree, shared by every file system that uses the same
+ * tree and saved in the cache, so later launches never need to parse the
+ * tree objects again.
+ */
+public class TreeIndex
+{
+    private static final int VERSION = 1;
+
+    // a tree's contents are determined by its id, so indexes can be shared
+    // between repositories
+    private static final Map<ObjectId, TreeIndex> INDEXES =
+        new ConcurrentHashMap<ObjectId, TreeIndex>();
+
+    public static class Entry
+    {
+        private final ObjectId objectId;
+        private final int rawMode;
+
+        public Entry(ObjectId objectId, int rawMode)
+        {
+            this.objectId = objectId;
+            this.rawMode = rawMode;
+        }
+
+        public ObjectId getObjectId()
+        {
+            return objectId;
+        }
+
+        public FileMode getFileMode()
+        {
+            return FileMode.fromBits(rawMode);
+        }
+
+        public boolean isTree()
+        {
+            return getFileMode().getObjectType() == Constants.OBJ_TREE;
+        }
+
+        public boolean isFile()
+        {
+            FileMode fileMode = getFileMode();
+            return fileMode == FileMode.REGULAR_FILE || fileMode == FileMode.EXECUTABLE_FILE;
+        }
+    }
+
+    private final ObjectId treeId;
+    private final NavigableMap<String, Entry> entries;
+
+    private TreeIndex(ObjectId treeId, NavigableMap<String, Entry> entries)
+    {
+        this.treeId = treeId;
+        this.entries = entries;
+    }
+
+    public ObjectId getTreeId()
+    {
+        return treeId;
+    }
+
+    /**
+     * Looks up a path in the tree.
+     *
+     * @param path
+     *            a path relative to the root of the tree, without a trailing
+     *            slash
+     * @return the entry for the path, or null if the path doesn't exist
+     */
+    public Entry get(String path)
+    {
+        return entries.get(path);
+    }
+
+    /**
+     * Lists the contents of a directory in the tree.
+     *
+     * @param directory
+     *            the path of the directory, which must be empty or end with a
+     *            slash
+     * @param recursive
+     *            true if the contents of subdirectories should be included
+     * @return the matching paths and entries in tree order
+     */
+    public List<Map.Entry<String, Entry>> list(String directory, boolean recursive)
+    {
+        List<Map.Entry<String, Entry>> contents = new ArrayList<Map.Entry<String, Entry>>();
+        for (Map.Entry<String, Entry> entry : entries.subMap(directory, false,
+            directory + Character.MAX_VALUE, false).entrySet())
+        {
+            if (recursive || entry.getKey().indexOf('/', directory.length()) == -1)
+            {
+                contents.add(entry);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Gets the index of a subtree by filtering this index, without walking
+     * the subtree.
+     *
+     * @param path
+     *            the path of the subtree, without a trailing slash
+     * @return the index of the subtree, or null if the path is not a tree
+     */
+    public TreeIndex getSubtreeIndex(String path)
+    {
+        Entry subtree = entries.get(path);
+        if (subtree == null || !subtree.isTree())
+        {
+            return null;
+        }
+
+        TreeIndex index = INDEXES.get(subtree.getObjectId());
+        if (index == null)
+        {
+            String prefix = path + '/';
+            NavigableMap<String, Entry> subtreeEntries = new TreeMap<String, Entry>();
+            for (Map.Entry<String, Entry> entry : list(prefix, true))
+            {
+                subtreeEntries.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+            index =
+                new TreeIndex(subtree.getObjectId(),
+                    Collections.unmodifiableNavigableMap(subtreeEntries));
+            INDEXES.put(index.getTreeId(), index);
+        }
+        return index;
+    }
+
+    public static TreeIndex getTreeIndex(Repository repository, ObjectId treeId)
+        throws IOException
+    {
+        TreeIndex index = INDEXES.get(treeId);
+        if (index != null)
+        {
+            return index;
+        }
+
+        File cacheFile = getCacheFile(treeId);
+        index = read(cacheFile, treeId);
+        if (index == null)
+        {
+            index = build(repository, treeId);
+            try
+            {
+                index.write(cacheFile);
+            }
+            catch (IOException e)
+            {
+                Reboot.info("Unable to save tree index " + cacheFile + ": " + e);
+            }
+        }
+
+        INDEXES.put(treeId, index);
+        return index;
+    }
+
+    private static File getCacheFile(ObjectId treeId)
+    {
+        return new File(Reboot.getCacheDirectory(), "git-tree-index/" + treeId.name());
+    }
+
+    private static TreeIndex build(Repository repository, ObjectId treeId) throws IOException
+    {
+        NavigableMap<String, Entry> entries = new TreeMap<String, Entry>();
+        TreeWalk treeWalk = new TreeWalk(repository);
+        try
+        {
+            treeWalk.reset(treeId);
+            treeWalk.setRecursive(false);
+            while (treeWalk.next())
+            {
+                entries.put(treeWalk.getPathString(), new Entry(treeWalk.getObjectId(0),
+                    treeWalk.getRawMode(0)));
+                if (treeWalk.isSubtree())
+                {
+                    treeWalk.enterSubtree();
+                }
+            }
+        }
+        finally
+        {
+            treeWalk.release();
+        }
+        return new TreeIndex(treeId, Collections.unmodifiableNavigableMap(entries));
+    }
+
+    private static TreeIndex read(File file, ObjectId treeId)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        NavigableMap<String, Entry> entries = new TreeMap<String, Entry>();
+        try
+        {
+            DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (input.readInt() != VERSION)
+                {
+                    return null;
+                }
+                byte[] rawId = new byte[Constants.OBJECT_ID_LENGTH];
+                int count = input.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String path = input.readUTF();
+                    int rawMode = input.readInt();
+                    input.readFully(rawId);
+                    entries.put(path, new Entry(ObjectId.fromRaw(rawId), rawMode));
+                }
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged index is simply rebuilt
+            return null;
+        }
+        return new TreeIndex(treeId, Collections.unmodifiableNavigableMap(entries));
+    }
+
+    private void write(File file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        byte[] rawId = new byte[Constants.OBJECT_ID_LENGTH];
+        for (Map.Entry<String, Entry> entry : entries.entrySet())
+        {
+            output.writeUTF(entry.getKey());
+            output.writeInt(entry.getValue().rawMode);
+            entry.getValue().getObjectId().copyRawTo(rawId, 0);
+            output.write(rawId);
+        }
+        output.close();
+        FileUtil.write(file, bytes.toByteArray());
+    }
+}
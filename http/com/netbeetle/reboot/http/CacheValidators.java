@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import com.netbeetle.reboot.core.FileUtil;
+import com.netbeetle.reboot.core.HashUtil;
+import com.netbeetle.reboot.core.Reboot;
+
+/**
+ * The validators a server sent with a cached file, and the time the file was
+ * last checked against the server. A revalidation sends the validators back,
+ * so an unchanged file costs only a "304 Not Modified" response.
+ */
+public class CacheValidators
+{
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String CHECKED = "checked";
+
+    private final File file;
+    private String eTag;
+    private String lastModified;
+    private long checkedTime;
+
+    private CacheValidators(File file)
+    {
+        this.file = file;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * @return the time the cached file was last downloaded or found to be
+     *         current, or 0 if it is not known
+     */
+    public long getCheckedTime()
+    {
+        return checkedTime;
+    }
+
+    /**
+     * Adds the validators to a conditional request.
+     */
+    public void addTo(HttpURLConnection connection)
+    {
+        if (eTag != null)
+        {
+            connection.setRequestProperty("If-None-Match", eTag);
+        }
+        if (lastModified != null)
+        {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Records the validators of a response that downloaded the file.
+     */
+    public void update(HttpURLConnection connection, long time)
+    {
+        eTag = connection.getHeaderField("ETag");
+        lastModified = connection.getHeaderField("Last-Modified");
+        checkedTime = time;
+    }
+
+    /**
+     * Records that the server found the cached file to be current.
+     */
+    public void setCheckedTime(long checkedTime)
+    {
+        this.checkedTime = checkedTime;
+    }
+
+    public static CacheValidators load(URI uri) throws IOException
+    {
+        CacheValidators validators = new CacheValidators(getFile(uri));
+        if (!validators.file.isFile())
+        {
+            return validators;
+        }
+
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(validators.file);
+        try
+        {
+            properties.load(inputStream);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+
+        validators.eTag = properties.getProperty(ETAG);
+        validators.lastModified = properties.getProperty(LAST_MODIFIED);
+        try
+        {
+            validators.checkedTime = Long.parseLong(properties.getProperty(CHECKED, "0"));
+        }
+        catch (NumberFormatException e)
+        {
+            // a damaged time forces a revalidation
+        }
+        return validators;
+    }
+
+    public void save() throws IOException
+    {
+        Properties properties = new Properties();
+        if (eTag != null)
+        {
+            properties.setProperty(ETAG, eTag);
+        }
+        if (lastModified != null)
+        {
+            properties.setProperty(LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(CHECKED, Long.toString(checkedTime));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        properties.store(bytes, null);
+        FileUtil.write(file, bytes.toByteArray());
+    }
+
+    private static File getFile(URI uri) throws IOException
+    {
+        try
+        {
+            return new File(Reboot.getCacheDirectory(), "http-validators/"
+                + HashUtil.hash(uri.toString()));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Unable to compute hash", e);
+        }
+    }
+}
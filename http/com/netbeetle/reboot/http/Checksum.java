@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * A checksum published by a repository next to the file it describes, such
+ * as the ".sha1" files in a Maven repository.
+ */
+public class Checksum
+{
+    public enum Type
+    {
+        SHA256("SHA-256", ".sha256", 64),
+        SHA1("SHA-1", ".sha1", 40);
+
+        private final String algorithm;
+        private final String extension;
+        private final int length;
+
+        private Type(String algorithm, String extension, int length)
+        {
+            this.algorithm = algorithm;
+            this.extension = extension;
+            this.length = length;
+        }
+
+        public String getAlgorithm()
+        {
+            return algorithm;
+        }
+
+        public String getExtension()
+        {
+            return extension;
+        }
+
+        /**
+         * @return the lower case name of the algorithm, such as "sha256"
+         */
+        public String getName()
+        {
+            return extension.substring(1);
+        }
+
+        public MessageDigest newDigest() throws IOException
+        {
+            try
+            {
+                return MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private final Type type;
+    private final String value;
+
+    private Checksum(Type type, String value)
+    {
+        this.type = type;
+        this.value = value;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getAlgorithm()
+    {
+        return type.getAlgorithm();
+    }
+
+    /**
+     * @return the checksum as a lower case hex string
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Parses the contents of a checksum file, which may follow the checksum
+     * with a file name.
+     *
+     * @return the checksum, or null if the contents are not a checksum of the
+     *         given type
+     */
+    public static Checksum parse(Type type, String content)
+    {
+        String[] fields = content.trim().split("\\s+");
+        String value = fields[0].toLowerCase(Locale.ENGLISH);
+        if (value.length() != type.length || !value.matches("[0-9a-f]+"))
+        {
+            return null;
+        }
+        return new Checksum(type, value);
+    }
+}
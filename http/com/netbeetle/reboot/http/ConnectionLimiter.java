@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of concurrent connections, both in total and to each
+ * host, so parallel resolution doesn't overwhelm a repository server.
+ */
+public class ConnectionLimiter
+{
+    private final Semaphore connections;
+    private final ConcurrentMap<String, Semaphore> hostConnections =
+        new ConcurrentHashMap<String, Semaphore>();
+
+    public ConnectionLimiter(int maxConnections)
+    {
+        connections = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Waits for a connection to a host to become available.
+     *
+     * @param host
+     *            the host and port
+     * @param maxHostConnections
+     *            the limit for the host, which is fixed the first time the
+     *            host is seen
+     */
+    public void acquire(String host, int maxHostConnections) throws InterruptedIOException
+    {
+        Semaphore semaphore = hostConnections.get(host);
+        if (semaphore == null)
+        {
+            semaphore = new Semaphore(maxHostConnections, true);
+            Semaphore existing = hostConnections.putIfAbsent(host, semaphore);
+            if (existing != null)
+            {
+                semaphore = existing;
+            }
+        }
+
+        try
+        {
+            semaphore.acquire();
+            try
+            {
+                connections.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                semaphore.release();
+                throw e;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to connect to " + host);
+        }
+    }
+
+    public void release(String host)
+    {
+        connections.release();
+        hostConnections.get(host).release();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+/**
+ * Totals for every download made by a resolver. Because downloads overlap,
+ * the aggregate throughput is measured over the time from the start of the
+ * first download to the end of the last.
+ */
+public class DownloadStatistics
+{
+    private int count = 0;
+    private long bytes = 0;
+    private int resumedCount = 0;
+    private long resumedBytes = 0;
+    private int notModifiedCount = 0;
+    private long busyTime = 0;
+    private long firstStart = Long.MAX_VALUE;
+    private long lastEnd = Long.MIN_VALUE;
+
+    /**
+     * @param downloadBytes
+     *            the number of bytes transferred
+     * @param reusedBytes
+     *            the number of bytes of a partial download that were reused
+     *            instead of being transferred again
+     */
+    public synchronized void record(long downloadBytes, long reusedBytes, long start, long end)
+    {
+        count++;
+        bytes += downloadBytes;
+        if (reusedBytes > 0)
+        {
+            resumedCount++;
+            resumedBytes += reusedBytes;
+        }
+        busyTime += end - start;
+        firstStart = Math.min(firstStart, start);
+        lastEnd = Math.max(lastEnd, end);
+    }
+
+    /**
+     * Records a revalidation that found the cached file to be current.
+     */
+    public synchronized void recordNotModified()
+    {
+        notModifiedCount++;
+    }
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    public synchronized String getReport()
+    {
+        long elapsed = count == 0 ? 0 : lastEnd - firstStart;
+        return String.format("Downloaded %d files, %d KB in %d ms (%d KB/s aggregate, "
+            + "%d ms spent downloading, %d resumed reusing %d KB, %d not modified)", Integer
+            .valueOf(count), Long.valueOf(bytes / 1024), Long.valueOf(elapsed), Long
+            .valueOf(rate(bytes, elapsed)), Long.valueOf(busyTime), Integer
+            .valueOf(resumedCount), Long.valueOf(resumedBytes / 1024), Integer
+            .valueOf(notModifiedCount));
+    }
+
+    /**
+     * @return the rate in kilobytes per second
+     */
+    public static long rate(long bytes, long milliseconds)
+    {
+        return bytes * 1000 / 1024 / Math.max(milliseconds, 1);
+    }
+}
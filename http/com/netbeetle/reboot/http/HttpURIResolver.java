@@ -16,23 +16,94 @@
 
 package com.netbeetle.reboot.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.netbeetle.reboot.core.BlobStore;
+import com.netbeetle.reboot.core.CacheLock;
 import com.netbeetle.reboot.core.FileURIResolver;
+import com.netbeetle.reboot.core.HashUtil;
+import com.netbeetle.reboot.core.LockFile;
 import com.netbeetle.reboot.core.Reboot;
 import com.netbeetle.reboot.core.RebootException;
 import com.netbeetle.reboot.core.RebootFileSystem;
 import com.netbeetle.reboot.core.URIResolver;
+import com.netbeetle.reboot.core.URIResolverContext;
+import com.netbeetle.reboot.core.URISettings;
 
 public class HttpURIResolver implements URIResolver
 {
+    /** The maximum number of concurrent connections to a host, 4 by default. */
+    public static final String MAX_CONNECTIONS_PER_HOST = "http.maxConnectionsPerHost";
+
+    /**
+     * Either "immutable", the default, to never download a cached file again,
+     * "ttl", to revalidate a cached file once it is older than the
+     * http.cacheTTL setting, or "revalidate", to revalidate a cached file
+     * every time it is resolved.
+     */
+    public static final String CACHE_POLICY = "http.cachePolicy";
+
+    /** The number of seconds a file cached with the "ttl" policy is fresh. */
+    public static final String CACHE_TTL = "http.cacheTTL";
+
+    /**
+     * The base URLs of servers holding the same files, separated by
+     * whitespace and in order of preference. Downloads go to the fastest
+     * healthy mirror and fall back to the others on errors.
+     */
+    public static final String MIRRORS = "http.mirrors";
+
+    /**
+     * The number of seconds without receiving data before a download is
+     * abandoned, 30 by default.
+     */
+    public static final String STALL_TIMEOUT = "http.stallTimeout";
+
+    /**
+     * The base URLs of other machines running the serve-cache action,
+     * separated by whitespace. Immutable files are downloaded from the first
+     * peer that has them before going to the original URL.
+     */
+    public static final String PEERS = "http.peers";
+
+    public static final String IMMUTABLE = "immutable";
+    public static final String TTL = "ttl";
+    public static final String REVALIDATE = "revalidate";
+
+    private static final int MAX_CONNECTIONS = Integer.getInteger(
+        "com.netbeetle.reboot.http.maxConnections", 8).intValue();
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final URISettings settings;
+    private final LockFile lockFile;
+    private final ConnectionLimiter limiter = new ConnectionLimiter(MAX_CONNECTIONS);
+    private final MirrorSelector mirrorSelector = new MirrorSelector();
+    private final DownloadStatistics statistics = new DownloadStatistics();
+    private final AtomicBoolean reportRegistered = new AtomicBoolean(false);
+
+    public HttpURIResolver(URIResolverContext context)
+    {
+        this.settings = context.getSettings();
+        this.lockFile = context.getLockFile();
+    }
+
     @Override
     public RebootFileSystem resolve(URI uri) throws RebootException
     {
@@ -40,13 +111,34 @@ public class HttpURIResolver implements URIResolver
         {
             URL url = uri.toURL();
 
+            // the cache location is no longer where the content is stored,
+            // but it still names the lock and the partial download
             File cachedFile = Reboot.getCacheLocation(uri.toString());
-            if (!cachedFile.exists())
+            File blob = BlobStore.getInstance().lookup(uri);
+            if (blob == null || needsRevalidation(uri, CacheValidators.load(uri)))
             {
-                download(url, cachedFile);
+                // another process may be downloading the same file, so check
+                // again once it has finished
+                long requestTime = System.currentTimeMillis();
+                CacheLock cacheLock = CacheLock.get(cachedFile);
+                cacheLock.lock();
+                try
+                {
+                    blob = update(uri, url, cachedFile, requestTime);
+                }
+                finally
+                {
+                    cacheLock.unlock();
+                }
             }
 
-            return FileURIResolver.getInstance().resolve(cachedFile.toURI());
+            RebootFileSystem fileSystem =
+                FileURIResolver.getInstance().resolve(blob.toURI());
+            if (lockFile != null)
+            {
+                verifyPin(uri, fileSystem.fingerprint());
+            }
+            return fileSystem;
         }
         catch (IOException e)
         {
@@ -54,27 +146,632 @@ public class HttpURIResolver implements URIResolver
         }
     }
 
-    private void download(URL url, File file) throws IOException
+    /**
+     * Downloads a file that is missing from the cache, or revalidates a
+     * cached file that is due for it. The caller must hold the lock on the
+     * cached file.
+     *
+     * @param requestTime
+     *            the time the caller started waiting for the lock, since a
+     *            file checked after that time doesn't need checking again
+     * @return the blob holding the content of the URI
+     */
+    private File update(URI uri, URL url, File cachedFile, long requestTime)
+        throws IOException, RebootException
+    {
+        CacheValidators validators = CacheValidators.load(uri);
+        File blob = findBlob(uri, cachedFile);
+        if (blob == null)
+        {
+            return download(uri, url, cachedFile, validators, false);
+        }
+
+        if (validators.getCheckedTime() < requestTime && needsRevalidation(uri, validators))
+        {
+            try
+            {
+                File updatedBlob = download(uri, url, cachedFile, validators, true);
+                if (updatedBlob != null)
+                {
+                    return updatedBlob;
+                }
+            }
+            catch (IOException e)
+            {
+                Reboot.info("Unable to revalidate " + url + ", using the cached copy: " + e);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Finds the content of a URI in the blob store, first moving a file
+     * cached at the URI's cache location by an older version into the store.
+     * The caller must hold the lock on the cache location.
+     */
+    private static File findBlob(URI uri, File cachedFile) throws IOException
+    {
+        BlobStore blobStore = BlobStore.getInstance();
+        File blob = blobStore.lookup(uri);
+        if (blob == null && cachedFile.isFile())
+        {
+            String hash;
+            try
+            {
+                hash = HashUtil.hash(cachedFile);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IOException("Unable to compute hash", e);
+            }
+            blob = blobStore.add(cachedFile, hash);
+            blobStore.map(uri, hash);
+        }
+        return blob;
+    }
+
+    private boolean needsRevalidation(URI uri, CacheValidators validators)
+        throws RebootException
+    {
+        String policy = settings.get(uri, CACHE_POLICY, IMMUTABLE);
+        if (IMMUTABLE.equals(policy))
+        {
+            return false;
+        }
+        if (lockFile != null && lockFile.get(uri) != null)
+        {
+            // a pinned file must not change anyway
+            return false;
+        }
+        if (REVALIDATE.equals(policy))
+        {
+            return true;
+        }
+        if (TTL.equals(policy))
+        {
+            long age = System.currentTimeMillis() - validators.getCheckedTime();
+            return age < 0 || age >= settings.getLong(uri, CACHE_TTL, 3600) * 1000;
+        }
+        throw new RebootException("Unknown " + CACHE_POLICY + " " + policy + " for " + uri);
+    }
+
+    /**
+     * Checks the content hash of a file against its pin, or pins the file if
+     * it has no pin yet. A file whose cache policy asks for revalidation is
+     * only pinned by the lock action, or the policy would never apply.
+     */
+    private void verifyPin(URI uri, String hash) throws RebootException
     {
-        Reboot.info("Downloading " + url);
-        InputStream input = url.openStream();
+        String actualPin = "sha1 " + hash;
+        String pin = lockFile.get(uri);
+        if (pin == null)
+        {
+            if (lockFile.isUpdating()
+                || IMMUTABLE.equals(settings.get(uri, CACHE_POLICY, IMMUTABLE)))
+            {
+                lockFile.put(uri, actualPin);
+            }
+        }
+        else if (!pin.equals(actualPin))
+        {
+            throw new RebootException("Content of " + uri + " does not match its pin in "
+                + lockFile.getFile() + ": expected " + pin + " but found " + actualPin);
+        }
+    }
+
+    /**
+     * Downloads a file into the blob store, trying each of its mirrors in
+     * turn until one succeeds. When the checksum of a new file is known in
+     * advance, content already in the store is reused without downloading it
+     * again.
+     *
+     * @param revalidate
+     *            true to make a conditional request for a cached file, which
+     *            is left alone if the server reports it hasn't changed
+     * @return the blob, or null if the server reported the cached file hasn't
+     *         changed
+     */
+    private File download(URI uri, URL url, File file, CacheValidators validators,
+        boolean revalidate) throws IOException
+    {
+        registerReport();
+
+        Checksum checksum = null;
+        if (!revalidate)
+        {
+            checksum = getChecksum(uri, url);
+            String hash = checksum == null ? null : getBlobHash(checksum);
+            if (hash != null)
+            {
+                BlobStore blobStore = BlobStore.getInstance();
+                File blob = blobStore.getBlob(hash);
+                if (blob.isFile())
+                {
+                    Reboot.info("Reusing identical cached content for " + url);
+                    blobStore.map(uri, hash);
+                    return blob;
+                }
+            }
+
+            File blob = downloadFromPeer(uri, file, checksum);
+            if (blob != null)
+            {
+                return blob;
+            }
+        }
+
+        // validators are specific to a server, so revalidation always goes to
+        // the original URL
+        String mirrorList = revalidate ? null : settings.get(uri, MIRRORS);
+        List<Mirror> mirrors =
+            mirrorList == null ? Collections.<Mirror> emptyList() : mirrorSelector.select(url
+                .toString(), mirrorList);
+        if (mirrors.isEmpty())
+        {
+            return transfer(uri, url, file, validators, revalidate, null, checksum);
+        }
+
+        String path = MirrorSelector.getPath(url.toString(), mirrors);
+        for (int i = 0; i < mirrors.size(); i++)
+        {
+            Mirror mirror = mirrors.get(i);
+            try
+            {
+                return transfer(uri, mirror.getURL(path), file, validators, revalidate,
+                    mirror, checksum);
+            }
+            catch (IOException e)
+            {
+                mirror.recordFailure(System.currentTimeMillis());
+                if (i == mirrors.size() - 1)
+                {
+                    throw e;
+                }
+                Reboot.info("Download from " + mirror + " failed, trying the next mirror: "
+                    + e);
+            }
+        }
+        throw new IOException("No mirrors for " + url);
+    }
+
+    /**
+     * Finds the checksum of a file before downloading it, from its pin or
+     * from the checksum published next to it.
+     *
+     * @return the checksum, or null if it isn't available
+     */
+    private Checksum getChecksum(URI uri, URL url) throws IOException
+    {
+        String pin = lockFile == null ? null : lockFile.get(uri);
+        if (pin != null && pin.startsWith("sha1 "))
+        {
+            Checksum checksum = Checksum.parse(Checksum.Type.SHA1, pin.substring(5));
+            if (checksum != null)
+            {
+                return checksum;
+            }
+        }
+
+        String host = getHost(url);
+        limiter.acquire(host, getMaxHostConnections(uri));
         try
         {
-            file.getParentFile().mkdirs();
-            FileChannel channel = new FileOutputStream(file).getChannel();
+            return fetchChecksum(url, getStallTimeout(uri));
+        }
+        catch (IOException e)
+        {
+            // the download itself will report the problem, or find the
+            // checksum on a mirror
+            return null;
+        }
+        finally
+        {
+            limiter.release(host);
+        }
+    }
+
+    /**
+     * Downloads a file from a single server. The file is written to a ".part"
+     * file next to its cache location, and is only moved into the blob store
+     * once it is complete and has matched its checksum, so an interrupted
+     * download is never mistaken for a cached file. The next attempt resumes
+     * the partial file with a range request, even from a different mirror.
+     *
+     * @param mirror
+     *            the mirror to record measurements for, or null
+     * @param validators
+     *            the validators to update, or null if the server's validators
+     *            don't apply to the original URL
+     * @param expectedChecksum
+     *            the checksum of the file, or null to use the checksum
+     *            published next to the file
+     * @return the blob, or null if the server reported the cached file hasn't
+     *         changed
+     */
+    private File transfer(URI uri, URL url, File file, CacheValidators validators,
+        boolean revalidate, Mirror mirror, Checksum expectedChecksum) throws IOException
+    {
+        String host = getHost(url);
+        int stallTimeout = getStallTimeout(uri);
+        boolean immutable = IMMUTABLE.equals(settings.get(uri, CACHE_POLICY, IMMUTABLE));
+
+        limiter.acquire(host, getMaxHostConnections(uri));
+        try
+        {
+            Reboot.info((revalidate ? "Revalidating " : "Downloading ") + url);
+            long start = System.currentTimeMillis();
+            File partFile = new File(file.getPath() + ".part");
+
+            // a partial copy of a mutable file may be from an older version
+            long offset = immutable && !revalidate ? partFile.length() : 0;
+
+            HttpURLConnection connection = openConnection(url, offset, stallTimeout);
+            if (revalidate)
+            {
+                validators.addTo(connection);
+            }
+            if (offset > 0
+                && connection.getResponseCode() == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE)
+            {
+                // the partial file is no use, so start over
+                discard(connection);
+                offset = 0;
+                connection = openConnection(url, offset, stallTimeout);
+            }
+            int responseCode = connection.getResponseCode();
+            long responseTime = System.currentTimeMillis();
+            if (mirror != null)
+            {
+                mirror.recordLatency(responseTime - start);
+            }
+            if (revalidate && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                discard(connection);
+                long end = System.currentTimeMillis();
+                validators.setCheckedTime(end);
+                validators.save();
+                statistics.recordNotModified();
+                Reboot.info("Revalidated " + url + " (not modified, " + (end - start) + " ms)");
+                return null;
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK)
+            {
+                offset = 0;
+            }
+            else if (responseCode != HttpURLConnection.HTTP_PARTIAL)
+            {
+                discard(connection);
+                throw new IOException("Server returned HTTP " + responseCode + " for " + url);
+            }
+
+            // the published checksum is fetched after the download, so each
+            // algorithm it might use is computed while streaming
+            Map<Checksum.Type, MessageDigest> digests =
+                new EnumMap<Checksum.Type, MessageDigest>(Checksum.Type.class);
+            for (Checksum.Type type : Checksum.Type.values())
+            {
+                MessageDigest digest = type.newDigest();
+                if (offset > 0)
+                {
+                    HashUtil.hash(partFile, digest);
+                }
+                digests.put(type, digest);
+            }
+
+            InputStream input = connection.getInputStream();
             try
             {
-                channel.transferFrom(Channels.newChannel(input), 0, Long.MAX_VALUE);
+                partFile.getParentFile().mkdirs();
+                OutputStream output = new FileOutputStream(partFile, offset > 0);
+                try
+                {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int bytesRead = input.read(buffer);
+                    while (bytesRead != -1)
+                    {
+                        for (MessageDigest digest : digests.values())
+                        {
+                            digest.update(buffer, 0, bytesRead);
+                        }
+                        output.write(buffer, 0, bytesRead);
+                        bytesRead = input.read(buffer);
+                    }
+                }
+                finally
+                {
+                    output.close();
+                }
             }
             finally
             {
-                channel.close();
+                // closing a fully read stream returns the connection to the
+                // keep-alive cache for reuse by the next download
+                input.close();
+            }
+
+            Map<Checksum.Type, String> hashes =
+                new EnumMap<Checksum.Type, String>(Checksum.Type.class);
+            for (Map.Entry<Checksum.Type, MessageDigest> entry : digests.entrySet())
+            {
+                hashes.put(entry.getKey(), HashUtil.toHexString(entry.getValue().digest()));
+            }
+
+            Checksum checksum =
+                expectedChecksum != null ? expectedChecksum : fetchChecksum(url, stallTimeout);
+            if (checksum != null)
+            {
+                String actual = hashes.get(checksum.getType());
+                if (!actual.equals(checksum.getValue()))
+                {
+                    partFile.delete();
+                    throw new IOException("Checksum mismatch for " + url + ": expected "
+                        + checksum.getAlgorithm() + ' ' + checksum.getValue() + " but found "
+                        + actual);
+                }
+            }
+            String hash = hashes.get(Checksum.Type.SHA1);
+            BlobStore blobStore = BlobStore.getInstance();
+            File blob = blobStore.add(partFile, hash);
+            blobStore.map(uri, hash);
+            for (Map.Entry<Checksum.Type, String> entry : hashes.entrySet())
+            {
+                if (entry.getKey() != Checksum.Type.SHA1)
+                {
+                    blobStore.alias(entry.getKey().getName(), entry.getValue(), hash);
+                }
+            }
+
+            long end = System.currentTimeMillis();
+            if (validators != null)
+            {
+                validators.update(connection, end);
+                validators.save();
+            }
+
+            long bytes = blob.length() - offset;
+            statistics.record(bytes, offset, start, end);
+            if (mirror != null)
+            {
+                mirror.recordTransfer(bytes, end - responseTime);
             }
-            Reboot.info("Finished downloading " + url);
+            StringBuilder message = new StringBuilder();
+            message.append(String.format("Finished downloading %s (%d KB in %d ms, %d KB/s",
+                url, Long.valueOf(bytes / 1024), Long.valueOf(end - start), Long
+                    .valueOf(DownloadStatistics.rate(bytes, end - start))));
+            if (offset > 0)
+            {
+                message.append(", resumed after ").append(offset / 1024).append(" KB");
+            }
+            message.append(checksum != null ? ", " + checksum.getAlgorithm() + " verified"
+                : ", no checksum published").append(')');
+            Reboot.info(message.toString());
+            return blob;
+        }
+        finally
+        {
+            limiter.release(host);
+        }
+    }
+
+    private static String getHost(URL url)
+    {
+        return url.getHost() + ':' + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    }
+
+    private int getMaxHostConnections(URI uri) throws IOException
+    {
+        try
+        {
+            return (int) settings.getLong(uri, MAX_CONNECTIONS_PER_HOST, 4);
+        }
+        catch (RebootException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private int getStallTimeout(URI uri) throws IOException
+    {
+        try
+        {
+            return (int) settings.getLong(uri, STALL_TIMEOUT, 30) * 1000;
+        }
+        catch (RebootException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Finds the SHA-1 hash of the content with the given checksum, which is
+     * how the blob store names it.
+     *
+     * @return the hash, or null if no content with the checksum was recorded
+     */
+    private static String getBlobHash(Checksum checksum) throws IOException
+    {
+        if (checksum.getType() == Checksum.Type.SHA1)
+        {
+            return checksum.getValue();
+        }
+        return BlobStore.getInstance().lookupAlias(checksum.getType().getName(),
+            checksum.getValue());
+    }
+
+    /**
+     * Tries to download an immutable file from the blob stores of the
+     * configured peers. A file with a SHA-1 checksum is requested by its hash;
+     * otherwise the peer's record of the checksum, or failing that of the URI,
+     * names the blob to request. A peer's copy is only used if it matches the
+     * file's pin, or the checksum published next to the original file.
+     *
+     * @return the blob, or null if no peer has the file
+     */
+    private File downloadFromPeer(URI uri, File file, Checksum checksum) throws IOException
+    {
+        String peerList = settings.get(uri, PEERS);
+        if (peerList == null || checksum == null
+            || !IMMUTABLE.equals(settings.get(uri, CACHE_POLICY, IMMUTABLE)))
+        {
+            return null;
+        }
+
+        int stallTimeout = getStallTimeout(uri);
+        for (String peer : peerList.trim().split("\\s+"))
+        {
+            try
+            {
+                String hash = findPeerBlobHash(new URL(peer), uri, checksum, stallTimeout);
+                if (hash != null)
+                {
+                    URL peerURL = new URL(new URL(peer), BlobStore.getRelativePath(hash));
+                    return transfer(uri, peerURL, file, null, false, null, checksum);
+                }
+            }
+            catch (IOException e)
+            {
+                Reboot.info("Unable to download from peer " + peer + ": " + e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the SHA-1 hash a peer's blob store uses for a file.
+     *
+     * @return the hash, or null if the peer has no record of the file
+     */
+    private static String findPeerBlobHash(URL peer, URI uri, Checksum checksum,
+        int readTimeout) throws IOException
+    {
+        if (checksum.getType() == Checksum.Type.SHA1)
+        {
+            return checksum.getValue();
+        }
+
+        String alias =
+            fetchText(new URL(peer, BlobStore.getAliasPath(checksum.getType().getName(),
+                checksum.getValue())), readTimeout);
+        if (alias == null)
+        {
+            alias = fetchText(new URL(peer, BlobStore.getMappingPath(uri)), readTimeout);
+        }
+        Checksum hash = alias == null ? null : Checksum.parse(Checksum.Type.SHA1, alias);
+        return hash == null ? null : hash.getValue();
+    }
+
+    private static HttpURLConnection openConnection(URL url, long offset, int readTimeout)
+        throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(readTimeout);
+        if (offset > 0)
+        {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        return connection;
+    }
+
+    /**
+     * Fetches the checksum the repository publishes next to a file, trying
+     * the strongest algorithm first.
+     *
+     * @return the checksum, or null if the repository doesn't publish one
+     */
+    private static Checksum fetchChecksum(URL url, int readTimeout) throws IOException
+    {
+        for (Checksum.Type type : Checksum.Type.values())
+        {
+            URL checksumURL = new URL(url, url.getPath() + type.getExtension());
+            String content = fetchText(checksumURL, readTimeout);
+            if (content == null)
+            {
+                continue;
+            }
+
+            Checksum checksum = Checksum.parse(type, content);
+            if (checksum != null)
+            {
+                return checksum;
+            }
+            Reboot.info("Ignoring malformed checksum " + checksumURL);
+        }
+        return null;
+    }
+
+    /**
+     * Fetches a small text file, such as a checksum.
+     *
+     * @return the content, or null if the server doesn't have the file
+     */
+    private static String fetchText(URL url, int readTimeout) throws IOException
+    {
+        HttpURLConnection connection = openConnection(url, 0, readTimeout);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+        {
+            discard(connection);
+            return null;
+        }
+
+        InputStream input = connection.getInputStream();
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead = input.read(buffer);
+            while (bytesRead != -1)
+            {
+                bytes.write(buffer, 0, bytesRead);
+                bytesRead = input.read(buffer);
+            }
+            return new String(bytes.toByteArray(), "US-ASCII");
         }
         finally
         {
             input.close();
         }
     }
+
+    /**
+     * Reads and discards the body of an unsuccessful response, so the
+     * connection can be reused.
+     */
+    private static void discard(HttpURLConnection connection) throws IOException
+    {
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null)
+        {
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (errorStream.read(buffer) != -1)
+                {
+                    // discard
+                }
+            }
+            finally
+            {
+                errorStream.close();
+            }
+        }
+    }
+
+    /**
+     * Logs the download statistics at exit, once anything has been requested.
+     */
+    private void registerReport()
+    {
+        if (!reportRegistered.getAndSet(true))
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Reboot.info(statistics.getReport());
+                }
+            });
+        }
+    }
 }
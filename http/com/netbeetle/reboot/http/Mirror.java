@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * One of several servers holding the same files, with running measurements
+ * of its latency, throughput and failures.
+ */
+public class Mirror
+{
+    // the measurements are exponentially weighted moving averages
+    private static final double WEIGHT = 0.3;
+
+    // used to combine latency and throughput into an expected download time
+    private static final long TYPICAL_SIZE = 256 * 1024;
+
+    private static final int MAX_FAILURES = 3;
+    private static final long RETRY_DELAY = 60000;
+
+    private final String baseURL;
+    private final int order;
+    private double latency = -1;
+    private double throughput = -1;
+    private int failures = 0;
+    private long lastFailureTime = 0;
+
+    public Mirror(String baseURL, int order)
+    {
+        this.baseURL = baseURL;
+        this.order = order;
+    }
+
+    public String getBaseURL()
+    {
+        return baseURL;
+    }
+
+    /**
+     * @return the position of the mirror in the configured list
+     */
+    public int getOrder()
+    {
+        return order;
+    }
+
+    public URL getURL(String path) throws MalformedURLException
+    {
+        return new URL(baseURL + path);
+    }
+
+    /**
+     * Records the time taken to receive the response headers.
+     */
+    public synchronized void recordLatency(long milliseconds)
+    {
+        latency = latency < 0 ? milliseconds : latency + WEIGHT * (milliseconds - latency);
+    }
+
+    /**
+     * Records a completed download, which also clears any failures.
+     */
+    public synchronized void recordTransfer(long bytes, long milliseconds)
+    {
+        double rate = (double) bytes / Math.max(milliseconds, 1);
+        throughput = throughput < 0 ? rate : throughput + WEIGHT * (rate - throughput);
+        failures = 0;
+    }
+
+    public synchronized void recordFailure(long time)
+    {
+        failures++;
+        lastFailureTime = time;
+    }
+
+    /**
+     * @return false if the mirror has failed repeatedly and recently
+     */
+    public synchronized boolean isHealthy(long time)
+    {
+        return failures < MAX_FAILURES || time - lastFailureTime > RETRY_DELAY;
+    }
+
+    /**
+     * @return the expected time in milliseconds to download a typical file,
+     *         or 0 if the mirror hasn't been measured yet, so that every
+     *         mirror is tried before the fastest one is settled on
+     */
+    public synchronized double getScore()
+    {
+        if (latency < 0)
+        {
+            return 0;
+        }
+        return latency + (throughput > 0 ? TYPICAL_SIZE / throughput : 0);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if (latency < 0)
+        {
+            return String.format("%s (%d failures)", baseURL, Integer.valueOf(failures));
+        }
+        return String.format("%s (%.0f ms latency, %.0f KB/s, %d failures)", baseURL, Double
+            .valueOf(latency), Double.valueOf(Math.max(throughput, 0) * 1000 / 1024), Integer
+            .valueOf(failures));
+    }
+}
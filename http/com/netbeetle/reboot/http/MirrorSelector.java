@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Orders the mirrors of a file so that downloads go to the fastest healthy
+ * mirror first, and fall back to the others. The measurements of each mirror
+ * are shared by every file downloaded from it.
+ */
+public class MirrorSelector
+{
+    /**
+     * A snapshot of a mirror's measurements, which keep changing while the
+     * mirrors are sorted.
+     */
+    private static class Ranking implements Comparable<Ranking>
+    {
+        private final Mirror mirror;
+        private final boolean healthy;
+        private final double score;
+
+        public Ranking(Mirror mirror, long now)
+        {
+            this.mirror = mirror;
+            this.healthy = mirror.isHealthy(now);
+            this.score = mirror.getScore();
+        }
+
+        @Override
+        public int compareTo(Ranking other)
+        {
+            if (healthy != other.healthy)
+            {
+                return healthy ? -1 : 1;
+            }
+            if (healthy)
+            {
+                int result = Double.compare(score, other.score);
+                if (result != 0)
+                {
+                    return result;
+                }
+            }
+            return mirror.getOrder() - other.mirror.getOrder();
+        }
+    }
+
+    private final ConcurrentMap<String, Mirror> mirrors = new ConcurrentHashMap<String, Mirror>();
+
+    /**
+     * Finds the mirrors of a file.
+     *
+     * @param url
+     *            the URL of the file
+     * @param mirrorList
+     *            the base URLs of the mirrors, separated by whitespace and in
+     *            order of preference, one of which must be a prefix of the
+     *            file's URL
+     * @return the mirrors in the order they should be tried, or an empty list
+     *         if the URL is not under any of the mirrors
+     */
+    public List<Mirror> select(String url, String mirrorList)
+    {
+        String[] baseURLs = mirrorList.trim().split("\\s+");
+        List<Ranking> rankings = new ArrayList<Ranking>(baseURLs.length);
+        boolean found = false;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < baseURLs.length; i++)
+        {
+            found |= url.startsWith(baseURLs[i]);
+            rankings.add(new Ranking(getMirror(baseURLs[i], i), now));
+        }
+        if (!found)
+        {
+            return Collections.emptyList();
+        }
+
+        Collections.sort(rankings);
+        List<Mirror> candidates = new ArrayList<Mirror>(rankings.size());
+        for (Ranking ranking : rankings)
+        {
+            candidates.add(ranking.mirror);
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the part of the URL after the base URL of the mirror it is
+     *         under, or null if it isn't under any of the mirrors
+     */
+    public static String getPath(String url, List<Mirror> mirrors)
+    {
+        for (Mirror mirror : mirrors)
+        {
+            if (url.startsWith(mirror.getBaseURL()))
+            {
+                return url.substring(mirror.getBaseURL().length());
+            }
+        }
+        return null;
+    }
+
+    private Mirror getMirror(String baseURL, int order)
+    {
+        Mirror mirror = mirrors.get(baseURL);
+        if (mirror == null)
+        {
+            mirror = new Mirror(baseURL, order);
+            Mirror existing = mirrors.putIfAbsent(baseURL, mirror);
+            if (existing != null)
+            {
+                mirror = existing;
+            }
+        }
+        return mirror;
+    }
+}
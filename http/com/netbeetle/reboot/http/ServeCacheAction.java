@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.RebootThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the downloaded artifacts in this machine's cache over HTTP, so other
+ * machines can list it in their http.peers setting and download artifacts
+ * from it before going to the internet. Files are served at their path within
+ * the cache, so peers find downloaded artifacts in the blob store by SHA-1
+ * hash, or through the store's records of their other checksums and of their
+ * URIs. Nothing else in the cache is served, since Git repositories and
+ * settings may hold private source or credentials.
+ * <p>
+ * Usage: rbt serve-cache [port [address]]. By default the server listens on
+ * every interface.
+ */
+public class ServeCacheAction implements RebootAction
+{
+    public static final int DEFAULT_PORT = 8700;
+
+    // the parts of the cache peers request
+    private static final String[] SERVED_PATHS = {"/blobs/", "/blob-aliases/",
+        "/blob-uris/"};
+
+    private static final int THREADS = 8;
+    private static final int BUFFER_SIZE = 65536;
+
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        List<String> args = arguments.getActionArgs();
+        if (args.size() > 2)
+        {
+            throw new RebootException("Usage: serve-cache [port [address]]");
+        }
+
+        int port = DEFAULT_PORT;
+        if (args.size() >= 1)
+        {
+            try
+            {
+                port = Integer.parseInt(args.get(0));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new RebootException("Invalid port: " + args.get(0), e);
+            }
+        }
+
+        InetSocketAddress address =
+            args.size() == 2 ? new InetSocketAddress(args.get(1), port)
+                : new InetSocketAddress(port);
+        if (address.isUnresolved())
+        {
+            throw new RebootException("Unknown address: " + args.get(1));
+        }
+
+        final File cacheDirectory = Reboot.getCacheDirectory().getAbsoluteFile();
+        HttpServer server;
+        try
+        {
+            server = HttpServer.create(address, 0);
+        }
+        catch (IOException e)
+        {
+            throw new RebootException("Unable to listen on " + address, e);
+        }
+
+        ExecutorService executor =
+            Executors.newFixedThreadPool(THREADS, new RebootThreadFactory("reboot-serve-cache"));
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    serve(cacheDirectory, exchange);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        Reboot.info("Serving downloads in " + cacheDirectory + " on " + address);
+
+        try
+        {
+            // serve until the process is killed
+            new CountDownLatch(1).await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    private static void serve(File cacheDirectory, HttpExchange exchange) throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method))
+        {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        File file = getFile(cacheDirectory, exchange.getRequestURI().getPath());
+        if (file == null || !file.isFile())
+        {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        InputStream input = new FileInputStream(file);
+        try
+        {
+            long length = file.length();
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if (head)
+            {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            OutputStream output = exchange.getResponseBody();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead = input.read(buffer);
+            while (bytesRead != -1)
+            {
+                output.write(buffer, 0, bytesRead);
+                bytesRead = input.read(buffer);
+            }
+            output.close();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Maps a request path to a file in the cache. Only the blob store and its
+     * records are served, and never files that are still being written.
+     *
+     * @return the file, or null if the path may not be served
+     */
+    private static File getFile(File cacheDirectory, String path)
+    {
+        if (path == null || path.endsWith(".part") || path.endsWith(".tmp")
+            || !isServed(path))
+        {
+            return null;
+        }
+        for (String segment : path.substring(1).split("/"))
+        {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals(".."))
+            {
+                return null;
+            }
+        }
+        return new File(cacheDirectory, path.substring(1));
+    }
+
+    private static boolean isServed(String path)
+    {
+        for (String servedPath : SERVED_PATHS)
+        {
+            if (path.startsWith(servedPath))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.modules;
+
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.LockFile;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.config.ModuleConfig;
+import com.netbeetle.reboot.core.config.RebootConfig;
+
+/**
+ * Resolves the entry point module and all of its dependencies again, ignoring
+ * the existing pins, and writes the new pins to the lock file. Modules outside
+ * the application, such as unused actions, are left unpinned.
+ */
+public class LockAction implements RebootAction
+{
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        if (!arguments.getActionArgs().isEmpty())
+        {
+            throw new RebootException("Unsupported arguments: " + arguments.getActionArgs());
+        }
+
+        LockFile lockFile = applicationContext.getLockFile();
+        if (lockFile == null)
+        {
+            throw new RebootException("Pinning is disabled by com.netbeetle.reboot.lock");
+        }
+
+        try
+        {
+            Reboot.info("Updating " + lockFile.getFile());
+            lockFile.update();
+
+            for (ModuleConfig module : getModules(applicationContext.getRebootConfig()))
+            {
+                if (module.getUris() != null)
+                {
+                    applicationContext.getFileSystem(module.getUris());
+                }
+                if (module.getSrcUris() != null)
+                {
+                    applicationContext.getFileSystem(module.getSrcUris());
+                }
+            }
+
+            lockFile.save();
+            Reboot.info("Pinned " + lockFile.size() + " URIs");
+        }
+        catch (RebootException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RebootException(e);
+        }
+    }
+
+    /**
+     * @return the entry point module followed by all of its dependencies
+     */
+    private static Set<ModuleConfig> getModules(RebootConfig config) throws RebootException
+    {
+        if (config.getEntryPoint() == null)
+        {
+            throw new RebootException("No entry point defined");
+        }
+
+        Set<ModuleConfig> modules = new LinkedHashSet<ModuleConfig>();
+        Deque<String> moduleIds = new LinkedList<String>();
+        moduleIds.push(config.getEntryPoint().getModuleId());
+        while (!moduleIds.isEmpty())
+        {
+            ModuleConfig module = lookupModuleConfig(config, moduleIds.pop());
+            if (modules.add(module) && module.getDependencies() != null)
+            {
+                for (String dependency : module.getDependencies())
+                {
+                    moduleIds.push(dependency);
+                }
+            }
+        }
+        return modules;
+    }
+
+    private static ModuleConfig lookupModuleConfig(RebootConfig config, String moduleId)
+        throws RebootException
+    {
+        if (config.getModules() != null)
+        {
+            for (ModuleConfig module : config.getModules())
+            {
+                if (module.getId().equals(moduleId))
+                {
+                    return module;
+                }
+            }
+        }
+        throw new RebootException("Module not found: " + moduleId);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.LoadOrder;
+import com.netbeetle.reboot.core.LockFile;
+import com.netbeetle.reboot.core.PackFile;
+import com.netbeetle.reboot.core.PackWriter;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootClassLoader;
+import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.RebootFile;
+import com.netbeetle.reboot.core.RebootFileSystem;
+import com.netbeetle.reboot.core.config.ModuleConfig;
+import com.netbeetle.reboot.core.config.RebootConfig;
+
+/**
+ * Resolves the entry point module and all of its dependencies, compiling
+ * source modules, and writes their contents to a single pack file. Later
+ * launches from the same directory use reboot.pack in place of resolving the
+ * packed modules for as long as the lock file pins the same content. Modules
+ * with unpinned URIs, such as local directories, are always resolved.
+ * <p>
+ * Classes are stored in the order recorded by the last launch with
+ * com.netbeetle.reboot.recordLoadOrder enabled, followed by everything else in
+ * name order.
+ */
+public class PackAction implements RebootAction
+{
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        List<String> args = arguments.getActionArgs();
+        if (args.size() > 1)
+        {
+            throw new RebootException("Unsupported arguments: " + args.subList(1, args.size()));
+        }
+        File file = new File(args.isEmpty() ? "reboot.pack" : args.get(0)).getAbsoluteFile();
+
+        RebootConfig config = applicationContext.getRebootConfig();
+        if (config.getEntryPoint() == null)
+        {
+            throw new RebootException("No entry point defined");
+        }
+
+        // only pinned content can be checked for changes when the pack is used
+        LockFile lockFile = applicationContext.getLockFile();
+        if (lockFile == null)
+        {
+            throw new RebootException("Packing requires a lock file");
+        }
+
+        try
+        {
+            // an existing pack would otherwise be packed again instead of the
+            // current contents of each module
+            PackFile oldPackFile = applicationContext.getPackFile();
+            ApplicationContext context = applicationContext;
+            if (oldPackFile != null)
+            {
+                context = new ApplicationContext(config, lockFile);
+            }
+
+            RebootClassLoader entryPoint =
+                context.getClassLoader(config.getEntryPoint().getModuleId());
+            List<RebootClassLoader> classLoaders =
+                new ArrayList<RebootClassLoader>(entryPoint.getDependencies());
+            classLoaders.add(entryPoint);
+
+            Reboot.info("Packing " + classLoaders.size() + " modules into " + file);
+            PackWriter writer = new PackWriter(file);
+            boolean success = false;
+            try
+            {
+                for (RebootClassLoader classLoader : classLoaders)
+                {
+                    String moduleId = classLoader.getModuleName();
+                    List<URI> uris = getURIs(config, moduleId);
+                    String pinnedURIs = PackFile.getPinnedURIs(uris, lockFile);
+                    if (pinnedURIs == null)
+                    {
+                        Reboot.info(String.format("  %-30s not packed, its URIs aren't pinned",
+                            moduleId));
+                        continue;
+                    }
+
+                    List<String> loadOrder = null;
+                    if (oldPackFile != null)
+                    {
+                        loadOrder =
+                            getLoadOrder(oldPackFile.getFileSystem(moduleId, uris, lockFile));
+                    }
+                    if (loadOrder == null || loadOrder.isEmpty())
+                    {
+                        loadOrder = getLoadOrder(classLoader.getFileSystem());
+                    }
+
+                    Map<String, RebootFile> remaining = new TreeMap<String, RebootFile>();
+                    for (RebootFile rebootFile : classLoader.findRebootFile("").list(true))
+                    {
+                        remaining.put(rebootFile.getName(), rebootFile);
+                    }
+
+                    List<RebootFile> files = new ArrayList<RebootFile>(remaining.size());
+                    for (String name : loadOrder)
+                    {
+                        RebootFile rebootFile = remaining.remove(name);
+                        if (rebootFile != null)
+                        {
+                            files.add(rebootFile);
+                        }
+                    }
+                    int ordered = files.size();
+                    files.addAll(remaining.values());
+
+                    writer.addModule(moduleId, pinnedURIs, files);
+                    Reboot.info(String.format("  %-30s %6d entries, %6d in load order",
+                        moduleId, Integer.valueOf(files.size()), Integer.valueOf(ordered)));
+                }
+
+                writer.close();
+                success = true;
+            }
+            finally
+            {
+                if (!success)
+                {
+                    writer.abort();
+                }
+            }
+
+            Reboot.info("Wrote " + file + " (" + file.length() + " bytes)");
+        }
+        catch (RebootException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RebootException(e);
+        }
+    }
+
+    private static List<URI> getURIs(RebootConfig config, String moduleId)
+        throws RebootException
+    {
+        for (ModuleConfig module : config.getModules())
+        {
+            if (module.getId().equals(moduleId))
+            {
+                return module.getUris() != null ? module.getUris() : module.getSrcUris();
+            }
+        }
+        throw new RebootException("Module not found: " + moduleId);
+    }
+
+    private static List<String> getLoadOrder(RebootFileSystem fileSystem) throws IOException
+    {
+        if (fileSystem == null)
+        {
+            return null;
+        }
+        String fingerprint = fileSystem.fingerprint();
+        return fingerprint == null ? null : LoadOrder.read(fingerprint);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.run;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.FileUtil;
+import com.netbeetle.reboot.core.HashUtil;
+import com.netbeetle.reboot.core.LoadOrder;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootClassLoader;
+import com.netbeetle.reboot.core.RebootException;
+
+/**
+ * Creates a dynamic class data sharing archive for the application. A training
+ * launch runs the application with the given arguments in a new JVM that
+ * dumps every class it loaded to the archive at exit, and records the classes
+ * each module loaded. The application must exit by itself for the archive to
+ * be written.
+ * <p>
+ * The archive is keyed by the fingerprints of the modules in the entry point's
+ * graph and described in reboot.cds, which bin/rbt reads to use the archive on
+ * later launches. A launch that finds different fingerprints removes
+ * reboot.cds, so the next launch goes without an archive until the cds action
+ * is run again.
+ * <p>
+ * The JVM can only share classes from jar files, so Reboot's own class path is
+ * copied into jars in the cache for launches that use the archive. Application
+ * classes are defined by Reboot's class loaders from memory, so the archive
+ * mostly speeds up the JDK and Reboot itself.
+ */
+public class ClassDataSharingAction implements RebootAction
+{
+    private static final String KEY_PROPERTY = "com.netbeetle.reboot.cdsKey";
+    private static final String CONFIG_FILE = "reboot.cds";
+
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        String version = System.getProperty("java.specification.version");
+        if (Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version) < 13)
+        {
+            throw new RebootException(
+                "Dynamic class data sharing archives require Java 13 or later");
+        }
+
+        try
+        {
+            String key = getKey(applicationContext);
+            File cdsDirectory = new File(Reboot.getCacheDirectory(), "cds");
+            File archive = new File(cdsDirectory, key + ".jsa");
+            String classpath = getSharedClasspath(new File(cdsDirectory, "classpath"));
+
+            File tempArchive = FileUtil.createTempFile(archive);
+            tempArchive.delete();
+
+            List<String> command = new ArrayList<String>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            {
+                if (!option.startsWith("-XX:SharedArchiveFile=")
+                    && !option.startsWith("-XX:ArchiveClassesAtExit=")
+                    && !option.startsWith("-D" + KEY_PROPERTY + "=")
+                    && !option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp"))
+                {
+                    command.add(option);
+                }
+            }
+            command.add("-XX:ArchiveClassesAtExit=" + tempArchive.getPath());
+            command.add("-Dcom.netbeetle.reboot.recordLoadOrder=true");
+            command.add("-cp");
+            command.add(classpath);
+            command.add(Reboot.class.getName());
+            command.add("run");
+            command.addAll(arguments.getActionArgs());
+
+            Reboot.info("Starting training launch");
+            int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (exitCode != 0)
+            {
+                tempArchive.delete();
+                throw new RebootException("Training launch failed with exit code " + exitCode);
+            }
+            if (!tempArchive.isFile())
+            {
+                throw new RebootException("Training launch did not write " + tempArchive);
+            }
+            FileUtil.replace(tempArchive, archive);
+
+            StringBuilder lines = new StringBuilder();
+            for (RebootClassLoader classLoader : getClassLoaders(applicationContext))
+            {
+                String fingerprint = classLoader.getFileSystem().fingerprint();
+                lines.append(String.format("%n  %-30s %6d classes", classLoader.getModuleName(),
+                    Integer.valueOf(fingerprint == null ? 0 : LoadOrder.read(fingerprint)
+                        .size())));
+            }
+
+            String config = archive.getPath() + '\n' + classpath + '\n' + key + '\n';
+            FileUtil.write(new File(CONFIG_FILE).getAbsoluteFile(), config.getBytes("UTF-8"));
+            Reboot.info("Wrote " + archive + " (" + archive.length()
+                + " bytes), loaded classes by module:" + lines);
+        }
+        catch (RebootException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RebootException(e);
+        }
+    }
+
+    /**
+     * Checks that the archive this JVM was launched with still matches the
+     * module graph, and stops later launches from using it if it doesn't.
+     *
+     * @param applicationContext
+     *            the context whose entry point class loader has been created
+     */
+    static void checkArchive(ApplicationContext applicationContext)
+    {
+        String expectedKey = System.getProperty(KEY_PROPERTY);
+
+        if (expectedKey == null)
+        {
+            return;
+        }
+        if (applicationContext.isLazy())
+        {
+            // fingerprinting every module would activate them all, so rbt
+            // doesn't launch lazy mode with the archive
+            Reboot.info("Not checking the class data sharing archive in lazy mode");
+            return;
+        }
+
+        try
+        {
+            if (!expectedKey.equals(getKey(applicationContext)))
+            {
+                Reboot.info("The class data sharing archive is out of date, run the cds "
+                    + "action to update it");
+                new File(CONFIG_FILE).getAbsoluteFile().delete();
+            }
+        }
+        catch (Exception e)
+        {
+            Reboot.info("Unable to check the class data sharing archive: " + e);
+        }
+    }
+
+    private static List<RebootClassLoader> getClassLoaders(
+        ApplicationContext applicationContext) throws Exception
+    {
+        if (applicationContext.getRebootConfig().getEntryPoint() == null)
+        {
+            throw new RebootException("No entry point defined");
+        }
+        RebootClassLoader entryPoint =
+            applicationContext.getClassLoader(applicationContext.getRebootConfig()
+                .getEntryPoint().getModuleId());
+        List<RebootClassLoader> classLoaders =
+            new ArrayList<RebootClassLoader>(entryPoint.getDependencies());
+        classLoaders.add(entryPoint);
+        return classLoaders;
+    }
+
+    private static String getKey(ApplicationContext applicationContext) throws Exception
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(System.getProperty("java.vm.version")).append('\n');
+        for (RebootClassLoader classLoader : getClassLoaders(applicationContext))
+        {
+            String fingerprint = classLoader.getFileSystem().fingerprint();
+            builder.append(classLoader.getModuleName()).append(' ')
+                .append(fingerprint == null ? "-" : fingerprint).append('\n');
+        }
+        return HashUtil.hash(builder.toString());
+    }
+
+    /**
+     * Copies each directory on this JVM's class path into a jar named by the
+     * hash of its contents, since the JVM won't share classes loaded from
+     * directories.
+     *
+     * @return the class path to launch with
+     */
+    private static String getSharedClasspath(File jarDirectory) throws IOException,
+        NoSuchAlgorithmException
+    {
+        StringBuilder classpath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+        {
+            File file = new File(entry).getAbsoluteFile();
+            if (file.isDirectory())
+            {
+                file = getJar(file, jarDirectory);
+            }
+            if (classpath.length() > 0)
+            {
+                classpath.append(File.pathSeparatorChar);
+            }
+            classpath.append(file.getPath());
+        }
+        return classpath.toString();
+    }
+
+    private static File getJar(File directory, File jarDirectory) throws IOException,
+        NoSuchAlgorithmException
+    {
+        List<String> names = new ArrayList<String>();
+        listFiles(directory, "", names);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        for (String name : names)
+        {
+            digest.update(name.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            HashUtil.hash(new File(directory, name), digest);
+        }
+        File jar = new File(jarDirectory, HashUtil.toHexString(digest.digest()) + ".jar");
+        if (jar.isFile())
+        {
+            return jar;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream output = new JarOutputStream(bytes);
+        for (String name : names)
+        {
+            output.putNextEntry(new JarEntry(name));
+            output.write(FileUtil.read(new File(directory, name)));
+            output.closeEntry();
+        }
+        output.close();
+        FileUtil.write(jar, bytes.toByteArray());
+        return jar;
+    }
+
+    private static void listFiles(File directory, String prefix, List<String> names)
+    {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files)
+        {
+            if (file.isDirectory())
+            {
+                listFiles(file, prefix + file.getName() + '/', names);
+            }
+            else
+            {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Josh Beitelspacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netbeetle.reboot.run;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.netbeetle.reboot.core.ApplicationContext;
+import com.netbeetle.reboot.core.Arguments;
+import com.netbeetle.reboot.core.ClassMetadata;
+import com.netbeetle.reboot.core.Reboot;
+import com.netbeetle.reboot.core.RebootAction;
+import com.netbeetle.reboot.core.RebootClassLoader;
+import com.netbeetle.reboot.core.RebootException;
+import com.netbeetle.reboot.core.RebootFileSystem;
+import com.netbeetle.reboot.core.StandardFileSystem;
+import com.netbeetle.reboot.core.ZipFileSystem;
+import com.netbeetle.reboot.core.config.EntryPointConfig;
+import com.netbeetle.reboot.core.config.ModuleConfig;
+import com.netbeetle.reboot.core.config.RebootConfig;
+
+/**
+ * Launches the application in a new JVM with a standard classpath made of the
+ * resolved artifacts, so the module class loaders are skipped entirely. This
+ * is only safe when every module is a plain jar or directory, each module uses
+ * the default class loader and no package is split between modules. When the
+ * graph can't be flattened the application is run normally instead.
+ * <p>
+ * Usage: rbt exec [--print] [args...]. With --print the launch command is
+ * printed rather than run.
+ */
+public class ExecAction implements RebootAction
+{
+    private static final Pattern SAFE_ARGUMENT = Pattern.compile("[A-Za-z0-9_@%+=:,./-]+");
+
+    @Override
+    public void execute(ApplicationContext applicationContext, Arguments arguments)
+        throws RebootException
+    {
+        List<String> args = new ArrayList<String>(arguments.getActionArgs());
+        boolean print = !args.isEmpty() && args.get(0).equals("--print");
+        if (print)
+        {
+            args.remove(0);
+        }
+
+        try
+        {
+            EntryPointConfig entryPoint = applicationContext.getRebootConfig().getEntryPoint();
+            if (entryPoint == null)
+            {
+                throw new RebootException("No entry point defined");
+            }
+
+            List<String> problems = new ArrayList<String>();
+            List<File> classpath = getClasspath(applicationContext, problems);
+            if (!problems.isEmpty())
+            {
+                StringBuilder message =
+                    new StringBuilder("Unable to flatten the module graph:");
+                for (String problem : problems)
+                {
+                    message.append(String.format("%n  ")).append(problem);
+                }
+                if (print)
+                {
+                    throw new RebootException(message.toString());
+                }
+                Reboot.info(message.toString());
+
+                List<String> runArgs = new ArrayList<String>(args.size() + 1);
+                runArgs.add("run");
+                runArgs.addAll(args);
+                new RunAction().execute(applicationContext,
+                    new Arguments(runArgs.toArray(new String[runArgs.size()])));
+                return;
+            }
+
+            List<String> command = new ArrayList<String>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            command.addAll(getJvmOptions());
+            command.add("-cp");
+            StringBuilder path = new StringBuilder();
+            for (File file : classpath)
+            {
+                if (path.length() > 0)
+                {
+                    path.append(File.pathSeparatorChar);
+                }
+                path.append(file.getPath());
+            }
+            command.add(path.toString());
+            command.add(entryPoint.getClassName());
+            command.addAll(args);
+
+            if (print)
+            {
+                StringBuilder line = new StringBuilder();
+                for (String argument : command)
+                {
+                    if (line.length() > 0)
+                    {
+                        line.append(' ');
+                    }
+                    line.append(quote(argument));
+                }
+                System.out.println(line);
+                return;
+            }
+
+            Reboot.info("Launching application with a flat classpath of " + classpath.size()
+                + " entries");
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            int exitCode = process.waitFor();
+            if (exitCode != 0)
+            {
+                System.exit(exitCode);
+            }
+        }
+        catch (RebootException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RebootException(e);
+        }
+    }
+
+    /**
+     * Resolves every module in the entry point's graph and collects the files
+     * they are read from, in the order the module class loaders search them.
+     *
+     * @param problems
+     *            receives a description of everything that prevents the graph
+     *            from being flattened
+     * @return the classpath, which is only usable if no problems were found
+     */
+    private static List<File> getClasspath(ApplicationContext applicationContext,
+        List<String> problems) throws Exception
+    {
+        RebootConfig config = applicationContext.getRebootConfig();
+        RebootClassLoader entryPoint =
+            applicationContext.getClassLoader(config.getEntryPoint().getModuleId());
+        List<RebootClassLoader> classLoaders =
+            new ArrayList<RebootClassLoader>(entryPoint.getDependencies());
+        classLoaders.add(entryPoint);
+
+        Set<File> classpath = new LinkedHashSet<File>();
+        Map<String, String> packageOwners = new HashMap<String, String>();
+        for (RebootClassLoader classLoader : classLoaders)
+        {
+            String moduleId = classLoader.getModuleName();
+            ModuleConfig module = lookupModuleConfig(config, moduleId);
+            if (module.getUris() == null)
+            {
+                problems.add(moduleId + " is built from source");
+                continue;
+            }
+            if (module.getClassLoaderId() != null
+                || classLoader.getClass() != RebootClassLoader.class)
+            {
+                problems.add(moduleId + " uses a custom class loader");
+                continue;
+            }
+
+            for (URI uri : module.getUris())
+            {
+                RebootFileSystem fileSystem = applicationContext.getFileSystem(uri);
+                if (fileSystem instanceof ZipFileSystem)
+                {
+                    classpath.add(((ZipFileSystem) fileSystem).getLocation());
+                }
+                else if (fileSystem instanceof StandardFileSystem)
+                {
+                    classpath.add(((StandardFileSystem) fileSystem).getLocation());
+                }
+                else
+                {
+                    problems.add(moduleId + " is not a plain jar or directory: " + uri);
+                }
+            }
+
+            // a package split between modules could resolve to different
+            // classes once every module shares one class loader
+            Set<String> packages = new LinkedHashSet<String>();
+            for (ClassMetadata metadata : classLoader.getClassIndex().getClasses())
+            {
+                String className = metadata.getName();
+                packages.add(className.substring(0, Math.max(className.lastIndexOf('.'), 0)));
+            }
+            for (String packageName : packages)
+            {
+                String owner = packageOwners.put(packageName, moduleId);
+                if (owner != null)
+                {
+                    problems.add("Package " + (packageName.isEmpty() ? "(default)" : packageName)
+                        + " is split between " + owner + " and " + moduleId);
+                }
+            }
+        }
+        return new ArrayList<File>(classpath);
+    }
+
+    private static ModuleConfig lookupModuleConfig(RebootConfig config, String moduleId)
+        throws RebootException
+    {
+        for (ModuleConfig module : config.getModules())
+        {
+            if (module.getId().equals(moduleId))
+            {
+                return module;
+            }
+        }
+        throw new RebootException("Module not found: " + moduleId);
+    }
+
+    /**
+     * Passes the options of this JVM on to the application, except those that
+     * only apply to Reboot, like its class data sharing archive, or can't be
+     * shared, like a debugger port.
+     */
+    private static List<String> getJvmOptions()
+    {
+        List<String> options = new ArrayList<String>();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+        {
+            if (!option.startsWith("-Dcom.netbeetle.reboot.")
+                && !option.startsWith("-Djava.protocol.handler.pkgs=")
+                && !option.startsWith("-XX:SharedArchiveFile=")
+                && !option.startsWith("-XX:ArchiveClassesAtExit=")
+                && !option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp"))
+            {
+                options.add(option);
+            }
+        }
+        return options;
+    }
+
+    private static String quote(String argument)
+    {
+        if (SAFE_ARGUMENT.matcher(argument).matches())
+        {
+            return argument;
+        }
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+}
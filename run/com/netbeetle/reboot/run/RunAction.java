@@ -37,6 +37,7 @@ public class RunAction implements RebootAction
 
             ClassLoader entryPointClassLoader = applicationContext.getEntryPointClassLoader();
             Class<?> entryPointClass = applicationContext.getEntryPointClass();
+            ClassDataSharingAction.checkArchive(applicationContext);
 
             Method mainMethod = entryPointClass.getMethod("main", String[].class);
 